@@ -0,0 +1,116 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package nl.frensjan.osgi.autoconf;
+
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import nl.frensjan.osgi.autoconf.benchmark.InMemoryServiceRegistry;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.osgi.framework.ServiceReference;
+
+/**
+ * Measures rendering the configuration specification for a single service
+ * event, for literal values, single and multiple references and aggregates
+ * over a number of services. For aggregates the cost of an event includes
+ * taking the properties of the changed service.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Fork(1)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+public class ConfigurationTemplateBenchmark {
+	private static final Map<String, String[]> TEMPLATES = new HashMap<>();
+	static {
+		TEMPLATES.put("literal", new String[] { "host=localhost", "port=8080", "secure=false" });
+		TEMPLATES.put("reference", new String[] { "source={service.pid}" });
+		TEMPLATES.put("references", new String[] { "url=http://{host}:{port}/{name}",
+				"source={service.pid}" });
+		TEMPLATES.put("concat", new String[] { "urls={concat:name:<[(%)]>}", "count={count}" });
+		TEMPLATES.put("array", new String[] { "names={array:name}", "count={count}" });
+	}
+
+	@Param({ "literal", "reference", "references", "concat", "array" })
+	public String template;
+
+	// the number of services aggregated by concat and array
+	@Param({ "10", "1000" })
+	public int services;
+
+	private ConfigurationTemplate compiled;
+	private PropertyProvider provider;
+	private AggregatePropertyProvider aggregate;
+	private ServiceReference changed;
+
+	@Setup
+	public void setup() throws ParseException {
+		InMemoryServiceRegistry registry = new InMemoryServiceRegistry();
+
+		List<ServiceReference> refs = new ArrayList<>();
+		for (int i = 0; i < this.services; i++) {
+			Map<String, Object> props = new HashMap<>();
+			props.put("service.pid", "producer." + i);
+			props.put("name", "producer-" + i);
+			props.put("host", "host-" + i);
+			props.put("port", 8000 + i);
+			refs.add(registry.register(props));
+		}
+
+		this.compiled = ConfigurationTemplate.compile(TEMPLATES.get(this.template));
+
+		this.changed = refs.get(refs.size() / 2);
+
+		if (this.template.equals("concat") || this.template.equals("array")) {
+			this.aggregate = new AggregatePropertyProvider(this.compiled);
+			for (ServiceReference ref : refs) {
+				this.aggregate.put(ref);
+			}
+			this.provider = this.aggregate;
+		} else {
+			this.provider = new BasicPropertyProvider(this.changed);
+		}
+	}
+
+	@Benchmark
+	public Object render() {
+		if (this.aggregate != null) {
+			this.aggregate.put(this.changed);
+		}
+
+		return this.compiled.render(this.provider);
+	}
+}
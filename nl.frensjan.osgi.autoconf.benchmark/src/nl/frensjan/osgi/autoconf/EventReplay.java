@@ -0,0 +1,216 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package nl.frensjan.osgi.autoconf;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import nl.frensjan.osgi.autoconf.benchmark.InMemoryConfigurationAdmin;
+import nl.frensjan.osgi.autoconf.benchmark.InMemoryServiceReference;
+import nl.frensjan.osgi.autoconf.benchmark.InMemoryServiceRegistry;
+import nl.frensjan.osgi.autoconf.benchmark.SilentLogService;
+import nl.frensjan.osgi.autoconf.metrics.RuleMetrics;
+
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.Constants;
+import org.osgi.framework.ServiceEvent;
+import org.osgi.framework.ServiceReference;
+import org.osgi.service.component.ComponentConstants;
+
+/**
+ * Replays the service events recorded by a rule (see its recordFile option)
+ * against the auto configurator, with in-memory stand-ins for the service
+ * registry and configuration admin, outside of an OSGi framework. Reports the
+ * throughput, the latencies of handling the events, rendering and writing the
+ * configurations, and the number of writes.
+ * 
+ * <pre>
+ * EventReplay &lt;recording&gt; [-maxSpeed] [-writeLatency &lt;micros&gt;]
+ * </pre>
+ * 
+ * The events are replayed at their original pace, or as fast as possible with
+ * -maxSpeed. Every write to configuration admin takes the given write latency
+ * (none by default), to mimic its persistence.
+ */
+public class EventReplay {
+	// the time to wait for the configurations to be written after the last
+	// event
+	private static final long TIMEOUT = TimeUnit.MINUTES.toNanos(1);
+
+	private final InMemoryServiceRegistry registry = new InMemoryServiceRegistry();
+	private final InMemoryConfigurationAdmin configAdmin;
+	private final ServiceEventDispatcher dispatcher = new ServiceEventDispatcher();
+	private final AutoConfigurator configurator = new AutoConfigurator();
+
+	private final boolean maxSpeed;
+
+	// the replayed services by their recorded service id
+	private final Map<Long, InMemoryServiceReference> services = new HashMap<>();
+
+	// the time spent by the registry delivering an event
+	private final LatencyRecorder eventLatency = new LatencyRecorder();
+
+	private EventReplay(boolean maxSpeed, long writeLatency) {
+		this.maxSpeed = maxSpeed;
+		this.configAdmin = new InMemoryConfigurationAdmin(writeLatency);
+	}
+
+	public static void main(String[] args) throws Exception {
+		File recording = null;
+		boolean maxSpeed = false;
+		long writeLatency = 0;
+
+		for (int i = 0; i < args.length; i++) {
+			if ("-maxSpeed".equals(args[i])) {
+				maxSpeed = true;
+			} else if ("-writeLatency".equals(args[i]) && i + 1 < args.length) {
+				writeLatency = TimeUnit.MICROSECONDS.toNanos(Long.parseLong(args[++i]));
+			} else if (recording == null) {
+				recording = new File(args[i]);
+			} else {
+				recording = null;
+				break;
+			}
+		}
+
+		if (recording == null) {
+			System.err.println("usage: EventReplay <recording> [-maxSpeed]"
+					+ " [-writeLatency <micros>]");
+			System.exit(2);
+		}
+
+		try (EventRecording.Reader reader = new EventRecording.Reader(recording)) {
+			new EventReplay(maxSpeed, writeLatency).replay(reader);
+		}
+	}
+
+	private void replay(EventRecording.Reader reader) throws Exception {
+		BundleContext context = this.registry.getBundleContext();
+
+		this.dispatcher.activate(context);
+
+		this.configurator.setLogger(new SilentLogService());
+		this.configurator.setConfigAdmin(this.configAdmin);
+		this.configurator.setDispatcher(this.dispatcher);
+
+		WriteLimiter writeLimiter = new WriteLimiter();
+		writeLimiter.activate(new HashMap<String, Object>());
+		this.configurator.setWriteLimiter(writeLimiter);
+
+		// the rule as recorded, without recording the replay again
+		Map<String, Object> rule = new HashMap<>(reader.getRuleProperties());
+		rule.put("recordFile", "");
+		rule.put("jmx", Boolean.FALSE);
+
+		// the services matched on activation are registered up front
+		EventRecording.Event event = reader.next();
+		while (event != null && event.type == EventRecording.MATCHED) {
+			this.services.put(event.serviceId, this.registry.register(event.properties));
+			event = reader.next();
+		}
+
+		int matched = this.services.size();
+		this.configurator.activate(context, rule);
+		RuleMetrics metrics = this.getMetrics();
+
+		long start = System.nanoTime();
+		long firstEventTime = event == null ? 0 : event.time;
+		int events = 0;
+
+		for (; event != null; event = reader.next()) {
+			if (!this.maxSpeed) {
+				long wait = event.time - firstEventTime - (System.nanoTime() - start);
+				if (wait > 0) {
+					TimeUnit.NANOSECONDS.sleep(wait);
+				}
+			}
+
+			long eventStart = System.nanoTime();
+			if (this.apply(event)) {
+				this.eventLatency.recordSince(eventStart);
+				events++;
+			}
+		}
+
+		// wait for the pending operations to be handed out, the operations
+		// being applied are waited for on deactivation
+		long deadline = System.nanoTime() + TIMEOUT;
+		while (metrics.getQueueDepth() > 0) {
+			if (System.nanoTime() - deadline > 0) {
+				throw new IllegalStateException("Timed out waiting for configurations");
+			}
+			Thread.sleep(1);
+		}
+
+		this.configurator.deactivate(context,
+				ComponentConstants.DEACTIVATION_REASON_CONFIGURATION_MODIFIED);
+		long elapsed = System.nanoTime() - start;
+		this.dispatcher.deactivate(context);
+
+		System.out.printf("replayed %d events (%d services matched on activation) in %d ms,"
+				+ " %.0f events/s%n", events, matched, TimeUnit.NANOSECONDS.toMillis(elapsed),
+				events * 1e9 / Math.max(1, elapsed));
+		System.out.printf("events:       %s%n", this.eventLatency.snapshot());
+		System.out.printf("render:       %s%n", metrics.getRenderLatency());
+		System.out.printf("config admin: %s%n", metrics.getConfigAdminLatency());
+		System.out.printf("writes:       created=%d updated=%d deleted=%d, skipped=%d"
+				+ " unchanged events=%d failures=%d%n", this.configAdmin.getCreateCount(),
+				this.configAdmin.getUpdateCount(), this.configAdmin.getDeleteCount(),
+				metrics.getSkippedUpdates(), metrics.getUnchangedEvents(), metrics.getFailures());
+	}
+
+	// replay an event through the registry, which delivers it (or a
+	// MODIFIED_ENDMATCH) to the dispatcher like it was originally
+	private boolean apply(EventRecording.Event event) {
+		InMemoryServiceReference ref = this.services.get(event.serviceId);
+
+		switch (event.type) {
+		case ServiceEvent.REGISTERED:
+			this.services.put(event.serviceId, this.registry.register(event.properties));
+			return true;
+		case ServiceEvent.MODIFIED:
+		case ServiceEvent.MODIFIED_ENDMATCH:
+			if (ref == null) {
+				// modified into matching, unseen before
+				this.services.put(event.serviceId, this.registry.register(event.properties));
+			} else {
+				this.registry.modify(ref, event.properties);
+			}
+			return true;
+		case ServiceEvent.UNREGISTERING:
+			if (ref != null) {
+				this.services.remove(event.serviceId);
+				this.registry.unregister(ref);
+				return true;
+			}
+			return false;
+		default:
+			return false;
+		}
+	}
+
+	private RuleMetrics getMetrics() throws Exception {
+		ServiceReference[] refs = this.registry.getBundleContext().getServiceReferences(
+				(String) null,
+				String.format("(%s=%s)", Constants.OBJECTCLASS, RuleMetrics.class.getName()));
+		return (RuleMetrics) this.registry.getService(refs[0]);
+	}
+}
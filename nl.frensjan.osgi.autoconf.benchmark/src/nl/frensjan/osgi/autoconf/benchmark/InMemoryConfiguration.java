@@ -0,0 +1,134 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package nl.frensjan.osgi.autoconf.benchmark;
+
+import java.util.Dictionary;
+import java.util.Enumeration;
+import java.util.Hashtable;
+
+import org.osgi.framework.Constants;
+import org.osgi.service.cm.Configuration;
+import org.osgi.service.cm.ConfigurationAdmin;
+
+/**
+ * A configuration of the {@link InMemoryConfigurationAdmin}.
+ */
+public class InMemoryConfiguration implements Configuration {
+	private final InMemoryConfigurationAdmin configAdmin;
+
+	private final String pid;
+	private final String factoryPid;
+	private String location;
+
+	private volatile Hashtable<String, Object> properties = null;
+	private volatile boolean deleted = false;
+	private long changeCount = 0;
+
+	InMemoryConfiguration(InMemoryConfigurationAdmin configAdmin, String pid,
+			String factoryPid, String location) {
+		this.configAdmin = configAdmin;
+		this.pid = pid;
+		this.factoryPid = factoryPid;
+		this.location = location;
+	}
+
+	@Override
+	public String getPid() {
+		return this.pid;
+	}
+
+	@Override
+	public String getFactoryPid() {
+		return this.factoryPid;
+	}
+
+	// the raw type is dictated by the Configuration interface
+	@Override
+	@SuppressWarnings("rawtypes")
+	public Dictionary getProperties() {
+		this.checkDeleted();
+
+		Hashtable<String, Object> properties = this.properties;
+		return properties == null ? null : new Hashtable<>(properties);
+	}
+
+	// the raw type is dictated by the Configuration interface
+	@Override
+	@SuppressWarnings("rawtypes")
+	public synchronized void update(Dictionary properties) {
+		this.checkDeleted();
+
+		Hashtable<String, Object> copy = new Hashtable<>();
+		for (Enumeration<?> keys = properties.keys(); keys.hasMoreElements();) {
+			Object key = keys.nextElement();
+			copy.put((String) key, properties.get(key));
+		}
+
+		copy.put(Constants.SERVICE_PID, this.pid);
+		if (this.factoryPid != null) {
+			copy.put(ConfigurationAdmin.SERVICE_FACTORYPID, this.factoryPid);
+		}
+
+		this.configAdmin.write();
+		this.properties = copy;
+		this.changeCount++;
+		this.configAdmin.updates.incrementAndGet();
+	}
+
+	@Override
+	public void update() {
+		this.checkDeleted();
+	}
+
+	@Override
+	public synchronized void delete() {
+		this.checkDeleted();
+
+		this.configAdmin.write();
+		this.deleted = true;
+		this.configAdmin.removed(this);
+		this.configAdmin.deletes.incrementAndGet();
+	}
+
+	@Override
+	public String getBundleLocation() {
+		return this.location;
+	}
+
+	@Override
+	public void setBundleLocation(String location) {
+		this.location = location;
+	}
+
+	public synchronized long getChangeCount() {
+		return this.changeCount;
+	}
+
+	private void checkDeleted() {
+		if (this.deleted) {
+			throw new IllegalStateException("Configuration " + this.pid + " is deleted");
+		}
+	}
+
+	@Override
+	public String toString() {
+		return "InMemoryConfiguration[" + this.pid + "]";
+	}
+}
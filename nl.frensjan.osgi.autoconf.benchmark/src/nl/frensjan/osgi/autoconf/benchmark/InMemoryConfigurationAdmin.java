@@ -0,0 +1,142 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package nl.frensjan.osgi.autoconf.benchmark;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.osgi.framework.Filter;
+import org.osgi.framework.FrameworkUtil;
+import org.osgi.framework.InvalidSyntaxException;
+import org.osgi.service.cm.Configuration;
+import org.osgi.service.cm.ConfigurationAdmin;
+
+/**
+ * A configuration admin stand-in which keeps the configurations in memory and
+ * counts the operations on them. Optionally every write takes a fixed time,
+ * to mimic the persistence of a real configuration admin.
+ */
+public class InMemoryConfigurationAdmin implements ConfigurationAdmin {
+	private final Map<String, InMemoryConfiguration> configurations = new ConcurrentHashMap<>();
+
+	private final AtomicLong pids = new AtomicLong();
+
+	final AtomicLong creates = new AtomicLong();
+	final AtomicLong updates = new AtomicLong();
+	final AtomicLong deletes = new AtomicLong();
+
+	private final long writeLatency;
+
+	public InMemoryConfigurationAdmin() {
+		this(0);
+	}
+
+	/**
+	 * @param writeLatency
+	 *            The time in nanoseconds each update or delete takes.
+	 */
+	public InMemoryConfigurationAdmin(long writeLatency) {
+		this.writeLatency = writeLatency;
+	}
+
+	@Override
+	public Configuration createFactoryConfiguration(String factoryPid) {
+		return this.createFactoryConfiguration(factoryPid, null);
+	}
+
+	@Override
+	public Configuration createFactoryConfiguration(String factoryPid, String location) {
+		String pid = factoryPid + "." + this.pids.incrementAndGet();
+		InMemoryConfiguration configuration = new InMemoryConfiguration(this, pid, factoryPid,
+				location);
+
+		this.configurations.put(pid, configuration);
+		this.creates.incrementAndGet();
+		return configuration;
+	}
+
+	@Override
+	public Configuration getConfiguration(String pid) {
+		return this.getConfiguration(pid, null);
+	}
+
+	@Override
+	public synchronized Configuration getConfiguration(String pid, String location) {
+		InMemoryConfiguration configuration = this.configurations.get(pid);
+
+		if (configuration == null) {
+			configuration = new InMemoryConfiguration(this, pid, null, location);
+			this.configurations.put(pid, configuration);
+			this.creates.incrementAndGet();
+		}
+
+		return configuration;
+	}
+
+	@Override
+	public Configuration[] listConfigurations(String filter) throws IOException,
+			InvalidSyntaxException {
+		Filter compiled = filter == null ? null : FrameworkUtil.createFilter(filter);
+
+		List<Configuration> matching = new ArrayList<>();
+		for (InMemoryConfiguration configuration : this.configurations.values()) {
+			if (configuration.getProperties() != null
+					&& (compiled == null || compiled.match(configuration.getProperties()))) {
+				matching.add(configuration);
+			}
+		}
+
+		return matching.isEmpty() ? null : matching.toArray(new Configuration[matching.size()]);
+	}
+
+	public Collection<InMemoryConfiguration> getConfigurations() {
+		return this.configurations.values();
+	}
+
+	public long getCreateCount() {
+		return this.creates.get();
+	}
+
+	public long getUpdateCount() {
+		return this.updates.get();
+	}
+
+	public long getDeleteCount() {
+		return this.deletes.get();
+	}
+
+	void removed(InMemoryConfiguration configuration) {
+		this.configurations.remove(configuration.getPid());
+	}
+
+	void write() {
+		if (this.writeLatency > 0) {
+			long end = System.nanoTime() + this.writeLatency;
+			while (end - System.nanoTime() > 0) {
+				Thread.yield();
+			}
+		}
+	}
+}
@@ -0,0 +1,127 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package nl.frensjan.osgi.autoconf.benchmark;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.osgi.framework.Bundle;
+import org.osgi.framework.Constants;
+import org.osgi.framework.ServiceReference;
+
+/**
+ * A service reference stand-in of which the properties can be modified, see
+ * {@link InMemoryServiceRegistry}.
+ */
+public class InMemoryServiceReference implements ServiceReference {
+	private static final AtomicLong SERVICE_IDS = new AtomicLong();
+
+	private final Bundle bundle;
+	private final Map<String, Object> properties = new ConcurrentHashMap<>();
+
+	private volatile boolean registered = true;
+
+	InMemoryServiceReference(Bundle bundle, Map<String, ?> properties) {
+		this.bundle = bundle;
+		this.properties.putAll(properties);
+		this.properties.put(Constants.SERVICE_ID, SERVICE_IDS.incrementAndGet());
+	}
+
+	void setProperty(String key, Object value) {
+		if (value == null) {
+			this.properties.remove(key);
+		} else {
+			this.properties.put(key, value);
+		}
+	}
+
+	void setProperties(Map<String, ?> properties) {
+		Object serviceId = this.properties.get(Constants.SERVICE_ID);
+		this.properties.clear();
+		this.properties.putAll(properties);
+		this.properties.put(Constants.SERVICE_ID, serviceId);
+	}
+
+	void unregistered() {
+		this.registered = false;
+	}
+
+	@Override
+	public Object getProperty(String key) {
+		Object value = this.properties.get(key);
+		if (value != null) {
+			return value;
+		}
+
+		// property keys are case insensitive
+		for (Map.Entry<String, Object> property : this.properties.entrySet()) {
+			if (property.getKey().equalsIgnoreCase(key)) {
+				return property.getValue();
+			}
+		}
+
+		return null;
+	}
+
+	@Override
+	public String[] getPropertyKeys() {
+		return this.properties.keySet().toArray(new String[this.properties.size()]);
+	}
+
+	@Override
+	public Bundle getBundle() {
+		return this.registered ? this.bundle : null;
+	}
+
+	@Override
+	public Bundle[] getUsingBundles() {
+		return null;
+	}
+
+	@Override
+	public boolean isAssignableTo(Bundle bundle, String className) {
+		return true;
+	}
+
+	@Override
+	public int compareTo(Object reference) {
+		InMemoryServiceReference other = (InMemoryServiceReference) reference;
+
+		int ranking = Integer.compare(this.ranking(), other.ranking());
+		if (ranking != 0) {
+			return ranking;
+		}
+
+		// the lower service id ranks higher
+		return Long.compare((Long) other.getProperty(Constants.SERVICE_ID),
+				(Long) this.getProperty(Constants.SERVICE_ID));
+	}
+
+	private int ranking() {
+		Object ranking = this.getProperty(Constants.SERVICE_RANKING);
+		return ranking instanceof Integer ? (Integer) ranking : 0;
+	}
+
+	@Override
+	public String toString() {
+		return "InMemoryServiceReference" + this.properties;
+	}
+}
@@ -0,0 +1,313 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package nl.frensjan.osgi.autoconf.benchmark;
+
+import java.io.File;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Dictionary;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.Hashtable;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.Constants;
+import org.osgi.framework.Filter;
+import org.osgi.framework.FrameworkUtil;
+import org.osgi.framework.InvalidSyntaxException;
+import org.osgi.framework.ServiceEvent;
+import org.osgi.framework.ServiceListener;
+import org.osgi.framework.ServiceReference;
+import org.osgi.framework.ServiceRegistration;
+
+/**
+ * A service registry outside of an OSGi framework, offering the part of the
+ * {@link BundleContext} used by the auto configurator: service listeners
+ * (with filters), service registration and lookup, filters and data files.
+ * Services are
+ * registered, modified and unregistered directly on the registry, which
+ * delivers the service events synchronously like a framework would.
+ */
+public class InMemoryServiceRegistry {
+	private static final class ListenerRegistration {
+		final ServiceListener listener;
+		final Filter filter;
+
+		ListenerRegistration(ServiceListener listener, Filter filter) {
+			this.listener = listener;
+			this.filter = filter;
+		}
+
+		boolean matches(ServiceReference ref) {
+			return this.filter == null || this.filter.match(ref);
+		}
+
+		boolean matches(Dictionary<String, ?> props) {
+			return this.filter == null || this.filter.match(props);
+		}
+	}
+
+	private final List<InMemoryServiceReference> services = new CopyOnWriteArrayList<>();
+	private final List<ListenerRegistration> listeners = new CopyOnWriteArrayList<>();
+	private final Map<ServiceReference, Object> serviceObjects = new ConcurrentHashMap<>();
+
+	private final File dataArea;
+	private final Bundle bundle;
+	private final BundleContext context;
+
+	// whether the framework is being shut down (the state of the bundle, which
+	// doubles as the system bundle)
+	private volatile boolean stopping = false;
+
+	public InMemoryServiceRegistry() {
+		this(null);
+	}
+
+	/**
+	 * @param dataArea
+	 *            The directory to resolve data files in, may be null.
+	 */
+	public InMemoryServiceRegistry(File dataArea) {
+		this.dataArea = dataArea;
+		this.bundle = (Bundle) Proxy.newProxyInstance(Bundle.class.getClassLoader(),
+				new Class<?>[] { Bundle.class }, new InvocationHandler() {
+					@Override
+					public Object invoke(Object proxy, Method method, Object[] args) {
+						return InMemoryServiceRegistry.this.invokeBundle(proxy, method, args);
+					}
+				});
+		this.context = (BundleContext) Proxy.newProxyInstance(
+				BundleContext.class.getClassLoader(), new Class<?>[] { BundleContext.class },
+				new InvocationHandler() {
+					@Override
+					public Object invoke(Object proxy, Method method, Object[] args)
+							throws InvalidSyntaxException {
+						return InMemoryServiceRegistry.this.invokeContext(proxy, method, args);
+					}
+				});
+	}
+
+	public BundleContext getBundleContext() {
+		return this.context;
+	}
+
+	/**
+	 * Mark the framework as being shut down (or not), as seen by components
+	 * deactivated while it is.
+	 */
+	public void setStopping(boolean stopping) {
+		this.stopping = stopping;
+	}
+
+	public InMemoryServiceReference register(Map<String, ?> properties) {
+		InMemoryServiceReference ref = new InMemoryServiceReference(this.bundle, properties);
+		this.services.add(ref);
+		this.fire(ServiceEvent.REGISTERED, ref, null);
+		return ref;
+	}
+
+	public void modify(InMemoryServiceReference ref, String key, Object value) {
+		Dictionary<String, ?> previous = this.snapshot(ref);
+		ref.setProperty(key, value);
+		this.fire(ServiceEvent.MODIFIED, ref, previous);
+	}
+
+	/**
+	 * Replace the properties of the service (apart from its service id).
+	 */
+	public void modify(InMemoryServiceReference ref, Map<String, ?> properties) {
+		Dictionary<String, ?> previous = this.snapshot(ref);
+		ref.setProperties(properties);
+		this.fire(ServiceEvent.MODIFIED, ref, previous);
+	}
+
+	public void unregister(InMemoryServiceReference ref) {
+		this.fire(ServiceEvent.UNREGISTERING, ref, null);
+		this.services.remove(ref);
+		this.serviceObjects.remove(ref);
+		ref.unregistered();
+	}
+
+	/**
+	 * @return The service object registered through the bundle context for
+	 *         the given reference, null for services registered directly.
+	 */
+	public Object getService(ServiceReference ref) {
+		return this.serviceObjects.get(ref);
+	}
+
+	private ServiceRegistration registerService(Object classes, Object service,
+			Dictionary<?, ?> properties) {
+		Map<String, Object> props = new HashMap<>();
+		if (properties != null) {
+			for (Enumeration<?> e = properties.keys(); e.hasMoreElements();) {
+				Object key = e.nextElement();
+				props.put((String) key, properties.get(key));
+			}
+		}
+
+		props.put(Constants.OBJECTCLASS, classes instanceof String[] ? classes
+				: new String[] { (String) classes });
+
+		final InMemoryServiceReference ref = new InMemoryServiceReference(this.bundle, props);
+		this.serviceObjects.put(ref, service);
+		this.services.add(ref);
+		this.fire(ServiceEvent.REGISTERED, ref, null);
+
+		return (ServiceRegistration) Proxy.newProxyInstance(
+				ServiceRegistration.class.getClassLoader(),
+				new Class<?>[] { ServiceRegistration.class }, new InvocationHandler() {
+					@Override
+					public Object invoke(Object proxy, Method method, Object[] args) {
+						switch (method.getName()) {
+						case "getReference":
+							return ref;
+						case "unregister":
+							InMemoryServiceRegistry.this.unregister(ref);
+							return null;
+						case "hashCode":
+							return System.identityHashCode(proxy);
+						case "equals":
+							return proxy == args[0];
+						case "toString":
+							return "InMemoryServiceRegistry registration " + ref;
+						}
+
+						throw new UnsupportedOperationException(method.toString());
+					}
+				});
+	}
+
+	// deliver the event to the listeners with a matching filter, or as
+	// MODIFIED_ENDMATCH to the listeners which matched the previous properties
+	private void fire(int type, InMemoryServiceReference ref, Dictionary<String, ?> previous) {
+		for (ListenerRegistration registration : this.listeners) {
+			if (registration.matches(ref)) {
+				registration.listener.serviceChanged(new ServiceEvent(type, ref));
+			} else if (type == ServiceEvent.MODIFIED && registration.matches(previous)) {
+				registration.listener.serviceChanged(new ServiceEvent(
+						ServiceEvent.MODIFIED_ENDMATCH, ref));
+			}
+		}
+	}
+
+	private Dictionary<String, ?> snapshot(ServiceReference ref) {
+		Hashtable<String, Object> props = new Hashtable<>();
+		for (String key : ref.getPropertyKeys()) {
+			props.put(key, ref.getProperty(key));
+		}
+		return props;
+	}
+
+	private ServiceReference[] getServiceReferences(String filter)
+			throws InvalidSyntaxException {
+		Filter compiled = filter == null ? null : FrameworkUtil.createFilter(filter);
+
+		List<ServiceReference> refs = new ArrayList<>();
+		for (InMemoryServiceReference ref : this.services) {
+			if (compiled == null || compiled.match(ref)) {
+				refs.add(ref);
+			}
+		}
+
+		return refs.isEmpty() ? null : refs.toArray(new ServiceReference[refs.size()]);
+	}
+
+	private Object invokeContext(Object proxy, Method method, Object[] args)
+			throws InvalidSyntaxException {
+		switch (method.getName()) {
+		case "addServiceListener": {
+			ServiceListener listener = (ServiceListener) args[0];
+			String filter = args.length > 1 ? (String) args[1] : null;
+			this.removeListener(listener);
+			this.listeners.add(new ListenerRegistration(listener, filter == null ? null
+					: FrameworkUtil.createFilter(filter)));
+			return null;
+		}
+		case "registerService":
+			return this.registerService(args[0], args[1], (Dictionary<?, ?>) args[2]);
+		case "getService":
+			return this.getService((ServiceReference) args[0]);
+		case "ungetService":
+			return Boolean.TRUE;
+		case "removeServiceListener":
+			this.removeListener((ServiceListener) args[0]);
+			return null;
+		case "getServiceReferences":
+		case "getAllServiceReferences":
+			if (args[0] != null) {
+				break;
+			}
+			return this.getServiceReferences((String) args[1]);
+		case "createFilter":
+			return FrameworkUtil.createFilter((String) args[0]);
+		case "getDataFile":
+			return this.dataArea == null ? null : new File(this.dataArea, (String) args[0]);
+		case "getBundle":
+			return this.bundle;
+		case "getProperty":
+			return System.getProperty((String) args[0]);
+		case "hashCode":
+			return System.identityHashCode(proxy);
+		case "equals":
+			return proxy == args[0];
+		case "toString":
+			return "InMemoryServiceRegistry context";
+		}
+
+		throw new UnsupportedOperationException(method.toString());
+	}
+
+	private Object invokeBundle(Object proxy, Method method, Object[] args) {
+		switch (method.getName()) {
+		case "getBundleId":
+			return 0L;
+		case "getState":
+			return this.stopping ? Bundle.STOPPING : Bundle.ACTIVE;
+		case "getSymbolicName":
+			return "nl.frensjan.osgi.autoconf.benchmark";
+		case "getBundleContext":
+			return this.context;
+		case "hashCode":
+			return System.identityHashCode(proxy);
+		case "equals":
+			return proxy == args[0];
+		case "toString":
+			return "InMemoryServiceRegistry bundle";
+		}
+
+		throw new UnsupportedOperationException(method.toString());
+	}
+
+	private void removeListener(ServiceListener listener) {
+		for (ListenerRegistration registration : this.listeners) {
+			if (registration.listener == listener) {
+				this.listeners.remove(registration);
+			}
+		}
+	}
+}
@@ -0,0 +1,203 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package nl.frensjan.osgi.autoconf.benchmark;
+
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import nl.frensjan.osgi.autoconf.AutoConfigurator;
+import nl.frensjan.osgi.autoconf.Multiplicity;
+import nl.frensjan.osgi.autoconf.ServiceEventDispatcher;
+import nl.frensjan.osgi.autoconf.WriteLimiter;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.InvalidSyntaxException;
+import org.osgi.service.component.ComponentConstants;
+
+/**
+ * Measures service events end to end, from the service registry through the
+ * dispatcher and the auto configurator to configuration admin, for a rule
+ * matching a number of services.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+public class ServiceChangedBenchmark {
+	// the time to wait for the configurations to be written
+	private static final long TIMEOUT = TimeUnit.MINUTES.toNanos(1);
+
+	@Param({ "ONE_FOR_EACH", "SINGLETON" })
+	public Multiplicity multiplicity;
+
+	@Param({ "10", "1000", "10000" })
+	public int services;
+
+	private InMemoryServiceRegistry registry;
+	private InMemoryConfigurationAdmin configAdmin;
+	private ServiceEventDispatcher dispatcher;
+	private AutoConfigurator configurator;
+
+	private final List<InMemoryServiceReference> refs = new ArrayList<>();
+	private long generation = 0;
+	private int next = 0;
+
+	@Setup
+	public void setup() throws InvalidSyntaxException, ParseException {
+		this.registry = new InMemoryServiceRegistry();
+		this.configAdmin = new InMemoryConfigurationAdmin();
+
+		for (int i = 0; i < this.services; i++) {
+			Map<String, Object> props = new HashMap<>();
+			props.put("kind", "producer");
+			props.put("name", "producer-" + i);
+			props.put("generation", this.generation);
+			this.refs.add(this.registry.register(props));
+		}
+
+		BundleContext context = this.registry.getBundleContext();
+
+		this.dispatcher = new ServiceEventDispatcher();
+		this.dispatcher.activate(context);
+
+		this.configurator = new AutoConfigurator();
+		this.configurator.setLogger(new SilentLogService());
+		this.configurator.setConfigAdmin(this.configAdmin);
+		this.configurator.setDispatcher(this.dispatcher);
+
+		WriteLimiter writeLimiter = new WriteLimiter();
+		writeLimiter.activate(new HashMap<String, Object>());
+		this.configurator.setWriteLimiter(writeLimiter);
+
+		Map<String, Object> rule = new HashMap<>();
+		rule.put("service.pid", "benchmark.rule");
+		rule.put("filter", "(kind=producer)");
+		rule.put("multiplicity", this.multiplicity.toString());
+		rule.put("targetPid", "benchmark.consumer");
+		rule.put("factory", Boolean.TRUE);
+
+		if (this.multiplicity == Multiplicity.SINGLETON) {
+			// the generations as strings and coerced back to longs
+			rule.put("configuration", new String[] { "generations={array:generation}",
+					"longGenerations:Long[]={array:generation}", "count={count}" });
+		} else {
+			rule.put("configuration", new String[] { "generation={generation}",
+					"name={name}" });
+		}
+
+		long updates = this.configAdmin.getUpdateCount();
+		this.configurator.activate(context, rule);
+		this.awaitApplied(updates);
+	}
+
+	@TearDown
+	public void tearDown() {
+		BundleContext context = this.registry.getBundleContext();
+		this.configurator.deactivate(context,
+				ComponentConstants.DEACTIVATION_REASON_CONFIGURATION_DELETED);
+		this.dispatcher.deactivate(context);
+	}
+
+	/**
+	 * A single service event, without waiting for it to be applied: the cost
+	 * for the thread modifying the service.
+	 */
+	@Benchmark
+	public void event() {
+		InMemoryServiceReference ref = this.refs.get(this.next++ % this.refs.size());
+		this.registry.modify(ref, "name", "producer-" + this.next);
+	}
+
+	/**
+	 * An event for every service, until all of them are applied.
+	 */
+	@Benchmark
+	public void burst() {
+		long updates = this.configAdmin.getUpdateCount();
+
+		this.generation++;
+		for (InMemoryServiceReference ref : this.refs) {
+			this.registry.modify(ref, "generation", this.generation);
+		}
+
+		this.awaitApplied(updates);
+	}
+
+	// wait until the configurations reflect the current generation
+	private void awaitApplied(long updatesBefore) {
+		long deadline = System.nanoTime() + TIMEOUT;
+		long checkedUpdates = -1;
+
+		while (true) {
+			long updates = this.configAdmin.getUpdateCount();
+			if (updates != checkedUpdates) {
+				checkedUpdates = updates;
+
+				if (this.multiplicity == Multiplicity.SINGLETON ? this.singletonApplied() : updates
+						- updatesBefore >= this.services) {
+					return;
+				}
+			}
+
+			if (System.nanoTime() - deadline > 0) {
+				throw new IllegalStateException("Timed out waiting for configurations");
+			}
+
+			Thread.yield();
+		}
+	}
+
+	private boolean singletonApplied() {
+		String generation = String.valueOf(this.generation);
+
+		for (InMemoryConfiguration configuration : this.configAdmin.getConfigurations()) {
+			String[] generations = (String[]) configuration.getProperties().get("generations");
+			if (generations == null || generations.length != this.services) {
+				return false;
+			}
+
+			for (String applied : generations) {
+				if (!applied.equals(generation)) {
+					return false;
+				}
+			}
+		}
+
+		return true;
+	}
+}
@@ -0,0 +1,44 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package nl.frensjan.osgi.autoconf.benchmark;
+
+import org.osgi.framework.ServiceReference;
+import org.osgi.service.log.LogService;
+
+/**
+ * Discards all log messages, so logging doesn't skew the measurements.
+ */
+public class SilentLogService implements LogService {
+	@Override
+	public void log(int level, String message) {
+	}
+
+	@Override
+	public void log(int level, String message, Throwable exception) {
+	}
+
+	@Override
+	public void log(ServiceReference sr, int level, String message) {
+	}
+
+	@Override
+	public void log(ServiceReference sr, int level, String message, Throwable exception) {
+	}
+}
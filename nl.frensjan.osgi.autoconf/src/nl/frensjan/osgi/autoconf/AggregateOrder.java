@@ -0,0 +1,42 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package nl.frensjan.osgi.autoconf;
+
+/**
+ * The order of the elements of the array and concat values in the managed
+ * configurations, which is stable for a stable set of matched services.
+ */
+public enum AggregateOrder {
+	/**
+	 * By service id, i.e. in the order the services were registered.
+	 */
+	SERVICE_ID,
+
+	/**
+	 * By service ranking, the highest first, as the framework orders the
+	 * services; services with the same ranking by service id.
+	 */
+	SERVICE_RANKING,
+
+	/**
+	 * By the value of the configured order property, services without the
+	 * property last; services with the same value by service id.
+	 */
+	PROPERTY
+}
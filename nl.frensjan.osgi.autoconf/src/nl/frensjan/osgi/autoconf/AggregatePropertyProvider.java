@@ -16,63 +16,341 @@
  * specific language governing permissions and limitations
  * under the License.
  */
-
 package nl.frensjan.osgi.autoconf;
 
-import java.util.Set;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
 
+import org.osgi.framework.Constants;
 import org.osgi.framework.ServiceReference;
 
+/**
+ * Provides the aggregate values (array, concat and count references) over a
+ * set of services, e.g. the services matched in singleton mode. Rather than
+ * walking all services on every rendering, the fragments of the aggregates
+ * for each service (its value for array references, as a string unless the
+ * key coerces it to a typed array, its element for concat references) are
+ * kept in a slot per service, which is maintained as the
+ * services are added, changed and removed. Rendering only assembles the
+ * fragments.
+ * 
+ * The slots are kept sorted by the {@link AggregateOrder} (with the service
+ * id breaking ties), so that the aggregate values are the same for the same
+ * services regardless of the order in which they were matched. If the
+ * aggregates are limited, only the first members in that order are
+ * aggregated, the others are kept so that they can take the place of a
+ * member dropping out.
+ * 
+ * The provider isn't thread safe, its owner guards it (also while rendering).
+ */
 class AggregatePropertyProvider implements PropertyProvider {
-	private static final String FOREACH_ARRAY = "array:";
-	private static final String FOREACH_CONCAT = "concat:";
-	private static final String FOREACH_COUNT = "count";
+	// the array and concat references of the template, and per reference
+	// whether its value is coerced to a typed array (which keeps the values
+	// as they are for the coercion)
+	private final PropertyReference[] references;
+	private final boolean[] typed;
+
+	private final AggregateOrder order;
+	private final String orderProperty;
+
+	// the number of members aggregated, the first ones in order
+	private final int limit;
+
+	// the order key of each member as it was when the member was put, by
+	// which its slot is found
+	private final Map<ServiceReference, Object> orderKeys = new HashMap<>();
+
+	// the members in order, with their order keys and service ids
+	private ServiceReference[] members = new ServiceReference[16];
+	private Object[] keys = new Object[16];
+	private long[] ids = new long[16];
+	private int size = 0;
+
+	// per reference the fragments of the members, by slot
+	private final Object[][] fragments;
+
+	// per concat reference the total length of the elements
+	private final int[] lengths;
+
+	public AggregatePropertyProvider(ConfigurationTemplate template) {
+		this(template, AggregateOrder.SERVICE_ID, null, 0);
+	}
+
+	/**
+	 * @param orderProperty
+	 *            The property to order by if the order is
+	 *            {@link AggregateOrder#PROPERTY}.
+	 * @param limit
+	 *            The maximum number of members aggregated, 0 for no limit.
+	 */
+	public AggregatePropertyProvider(ConfigurationTemplate template, AggregateOrder order,
+			String orderProperty, int limit) {
+		this.references = template.getAggregateReferences();
+		this.order = order;
+		this.orderProperty = orderProperty;
+		this.limit = limit > 0 ? limit : Integer.MAX_VALUE;
+		this.fragments = new Object[this.references.length][this.members.length];
+		this.lengths = new int[this.references.length];
+
+		this.typed = new boolean[this.references.length];
+		for (int r = 0; r < this.references.length; r++) {
+			this.typed[r] = template.isCoercedToArray(this.references[r]);
+		}
+	}
+
+	int size() {
+		return this.size;
+	}
+
+	boolean isEmpty() {
+		return this.size == 0;
+	}
+
+	/**
+	 * Add a service, or take its current properties if it is a member already.
+	 * 
+	 * @return Whether the aggregate values changed, i.e. whether the service
+	 *         is or was one of the aggregated members.
+	 */
+	boolean put(ServiceReference ref) {
+		Object key = this.orderKeyOf(ref);
+		long id = idOf(ref);
+
+		boolean aggregated = false;
+		if (this.orderKeys.containsKey(ref)) {
+			int slot = this.find(this.orderKeys.get(ref), id);
+			aggregated = slot < this.limit;
 
-	private final Set<ServiceReference> refs;
+			// keep the slot if the member stays in place
+			if (this.compare(key, this.keys[slot]) == 0) {
+				this.clear(slot);
+				this.fill(slot, ref);
+				return aggregated;
+			}
+
+			this.clear(slot);
+			this.removeSlot(slot);
+		}
+
+		int slot = -this.find(key, id) - 1;
+		this.insertSlot(slot);
+
+		this.members[slot] = ref;
+		this.keys[slot] = key;
+		this.ids[slot] = id;
+		this.orderKeys.put(ref, key);
+		this.fill(slot, ref);
+
+		return aggregated || slot < this.limit;
+	}
+
+	/**
+	 * @return Whether the aggregate values changed, i.e. whether the service
+	 *         was one of the aggregated members.
+	 */
+	boolean remove(ServiceReference ref) {
+		if (!this.orderKeys.containsKey(ref)) {
+			return false;
+		}
+
+		int slot = this.find(this.orderKeys.remove(ref), idOf(ref));
+		this.clear(slot);
+		this.removeSlot(slot);
+
+		return slot < this.limit;
+	}
 
-	public AggregatePropertyProvider(Set<ServiceReference> refs) {
-		this.refs = refs;
+	/**
+	 * @return Whether the service is a member and the properties it is
+	 *         ordered by didn't change since it was put.
+	 */
+	boolean isInPlace(ServiceReference ref) {
+		return this.orderKeys.containsKey(ref)
+				&& this.compare(this.orderKeyOf(ref), this.orderKeys.get(ref)) == 0;
 	}
 
 	@Override
-	public Object getProperty(String key) {
-		if (key.startsWith(FOREACH_ARRAY)) {
-			key = key.substring(FOREACH_ARRAY.length());
-			String[] value = new String[this.refs.size()];
-
-			int i = 0;
-			for (ServiceReference ref : this.refs) {
-				value[i++] = String.valueOf(ref.getProperty(key));
+	public Object getProperty(PropertyReference reference) {
+		if (reference.getKind() == PropertyReference.Kind.COUNT) {
+			return this.aggregated();
+		}
+
+		for (int r = 0; r < this.references.length; r++) {
+			if (this.references[r] == reference) {
+				return this.references[r].getKind() == PropertyReference.Kind.ARRAY ? this
+						.array(r) : this.concat(r);
 			}
+		}
 
-			return value;
-		} else if (key.startsWith(FOREACH_CONCAT)) {
-			key = key.substring(FOREACH_CONCAT.length());
+		return null;
+	}
 
-			Pattern pattern = Pattern.compile("([^:\\[%]+):([^:\\[%]*)\\[([^:\\[%]*)%([^:\\[%]*)\\]([^:\\[%]*)");
-			Matcher matcher = pattern.matcher(key);
-			if (matcher.matches()) {
-				key = matcher.group(1);
+	// the number of members aggregated
+	private int aggregated() {
+		return Math.min(this.size, this.limit);
+	}
+
+	private Object[] array(int r) {
+		int aggregated = this.aggregated();
+
+		Object[] array = this.typed[r] ? new Object[aggregated] : new String[aggregated];
+		System.arraycopy(this.fragments[r], 0, array, 0, aggregated);
+
+		return array;
+	}
 
-				StringBuilder value = new StringBuilder(matcher.group(2));
+	private String concat(int r) {
+		PropertyReference reference = this.references[r];
+		Object[] fragments = this.fragments[r];
 
-				for (ServiceReference ref : this.refs) {
-					value.append(matcher.group(3))
-							.append(String.valueOf(ref.getProperty(key)))
-							.append(matcher.group(4));
-				}
+		int aggregated = this.aggregated();
 
-				return value.append(matcher.group(5)).toString();
+		// the total length is tracked over all members
+		int length = this.lengths[r];
+		if (aggregated < this.size) {
+			length = 0;
+			for (int i = 0; i < aggregated; i++) {
+				length += ((String) fragments[i]).length();
+			}
+		}
+
+		StringBuilder value = new StringBuilder(reference.getPrefix().length() + length
+				+ reference.getPostfix().length());
+
+		value.append(reference.getPrefix());
+		for (int i = 0; i < aggregated; i++) {
+			value.append((String) fragments[i]);
+		}
+
+		return value.append(reference.getPostfix()).toString();
+	}
+
+	// compute the fragments of a member
+	private void fill(int slot, ServiceReference ref) {
+		for (int r = 0; r < this.references.length; r++) {
+			PropertyReference reference = this.references[r];
+			Object value = ref.getProperty(reference.getKey());
+
+			if (reference.getKind() == PropertyReference.Kind.ARRAY) {
+				this.fragments[r][slot] = this.typed[r] ? value : String.valueOf(value);
 			} else {
-				return key;
+				String element = reference.getElementPrefix() + String.valueOf(value)
+						+ reference.getElementPostfix();
+				this.fragments[r][slot] = element;
+				this.lengths[r] += element.length();
 			}
-		} else if (key.equals(FOREACH_COUNT)) {
-			return this.refs.size();
 		}
+	}
 
-		return null;
+	// discount the fragments of a member
+	private void clear(int slot) {
+		for (int r = 0; r < this.references.length; r++) {
+			if (this.references[r].getKind() == PropertyReference.Kind.CONCAT) {
+				this.lengths[r] -= ((String) this.fragments[r][slot]).length();
+			}
+		}
 	}
 
+	// the slot of the member with the given order key and service id, or
+	// (-(insertion point) - 1) if there is none
+	private int find(Object key, long id) {
+		int low = 0;
+		int high = this.size - 1;
+
+		while (low <= high) {
+			int mid = (low + high) >>> 1;
+
+			int c = this.compare(this.keys[mid], key);
+			if (c == 0) {
+				c = Long.compare(this.ids[mid], id);
+			}
+
+			if (c < 0) {
+				low = mid + 1;
+			} else if (c > 0) {
+				high = mid - 1;
+			} else {
+				return mid;
+			}
+		}
+
+		return -(low + 1);
+	}
+
+	// shift the slots from the given one up to make room
+	private void insertSlot(int slot) {
+		if (this.size == this.members.length) {
+			this.grow();
+		}
+
+		int moved = this.size - slot;
+		System.arraycopy(this.members, slot, this.members, slot + 1, moved);
+		System.arraycopy(this.keys, slot, this.keys, slot + 1, moved);
+		System.arraycopy(this.ids, slot, this.ids, slot + 1, moved);
+		for (Object[] fragments : this.fragments) {
+			System.arraycopy(fragments, slot, fragments, slot + 1, moved);
+		}
+
+		this.size++;
+	}
+
+	// shift the slots after the given one down over it
+	private void removeSlot(int slot) {
+		int moved = --this.size - slot;
+		System.arraycopy(this.members, slot + 1, this.members, slot, moved);
+		System.arraycopy(this.keys, slot + 1, this.keys, slot, moved);
+		System.arraycopy(this.ids, slot + 1, this.ids, slot, moved);
+		for (Object[] fragments : this.fragments) {
+			System.arraycopy(fragments, slot + 1, fragments, slot, moved);
+			fragments[this.size] = null;
+		}
+
+		this.members[this.size] = null;
+		this.keys[this.size] = null;
+	}
+
+	private Object orderKeyOf(ServiceReference ref) {
+		switch (this.order) {
+		case SERVICE_RANKING:
+			Object ranking = ref.getProperty(Constants.SERVICE_RANKING);
+			return ranking instanceof Integer ? ranking : 0;
+		case PROPERTY:
+			return ref.getProperty(this.orderProperty);
+		default:
+			return null;
+		}
+	}
+
+	// compare order keys, the highest ranking first or by property value with
+	// missing values last; values of different types are ordered by type
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	private int compare(Object a, Object b) {
+		if (this.order == AggregateOrder.SERVICE_RANKING) {
+			return ((Integer) b).compareTo((Integer) a);
+		} else if (a == null || b == null) {
+			return a == b ? 0 : a == null ? 1 : -1;
+		} else if (a.getClass() != b.getClass()) {
+			return a.getClass().getName().compareTo(b.getClass().getName());
+		} else if (a instanceof Comparable) {
+			return ((Comparable) a).compareTo(b);
+		} else {
+			return String.valueOf(a).compareTo(String.valueOf(b));
+		}
+	}
+
+	private static long idOf(ServiceReference ref) {
+		Object id = ref.getProperty(Constants.SERVICE_ID);
+		return id instanceof Number ? ((Number) id).longValue() : 0;
+	}
+
+	private void grow() {
+		int capacity = this.members.length * 2;
+		this.members = Arrays.copyOf(this.members, capacity);
+		this.keys = Arrays.copyOf(this.keys, capacity);
+		this.ids = Arrays.copyOf(this.ids, capacity);
+		for (int r = 0; r < this.fragments.length; r++) {
+			this.fragments[r] = Arrays.copyOf(this.fragments[r], capacity);
+		}
+	}
 }
@@ -18,24 +18,42 @@
  */
 package nl.frensjan.osgi.autoconf;
 
+import java.io.File;
 import java.io.IOException;
+import java.lang.management.ManagementFactory;
 import java.text.ParseException;
-import java.util.Arrays;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Hashtable;
+import java.util.List;
 import java.util.Map;
-import java.util.Properties;
 import java.util.Set;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
+import javax.management.JMException;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
+
+import org.osgi.framework.Bundle;
 import org.osgi.framework.BundleContext;
+import org.osgi.framework.Constants;
 import org.osgi.framework.InvalidSyntaxException;
 import org.osgi.framework.ServiceEvent;
 import org.osgi.framework.ServiceListener;
 import org.osgi.framework.ServiceReference;
+import org.osgi.framework.ServiceRegistration;
 import org.osgi.service.cm.Configuration;
 import org.osgi.service.cm.ConfigurationAdmin;
+import org.osgi.service.cm.ConfigurationEvent;
+import org.osgi.service.cm.ConfigurationListener;
+import org.osgi.service.cm.ManagedService;
+import org.osgi.service.cm.ManagedServiceFactory;
+import org.osgi.service.component.ComponentConstants;
 import org.osgi.service.log.LogService;
 
 import aQute.bnd.annotation.component.Activate;
@@ -44,69 +62,362 @@ import aQute.bnd.annotation.component.Deactivate;
 import aQute.bnd.annotation.component.Reference;
 import aQute.bnd.annotation.metatype.Configurable;
 
+import nl.frensjan.osgi.autoconf.UpdateQueue.Operation;
+import nl.frensjan.osgi.autoconf.metrics.RuleMetrics;
+
 @Component(immediate = true, designateFactory = Config.class)
 public class AutoConfigurator implements ServiceListener {
+	/**
+	 * The property with which the managed configurations are tagged with the
+	 * (service) pid of the auto configuration rule which created them.
+	 */
+	public static final String RULE_PROPERTY = "autoconf.rule";
+
+	/**
+	 * The property with which the managed configurations are tagged with the
+	 * identity of the service they were created for: the value of the
+	 * configured identity property, or its service.pid, which is stable across
+	 * restarts, or its service.id if it has none (not set for singleton and
+	 * partitioned configurations).
+	 */
+	public static final String SOURCE_PROPERTY = "autoconf.source";
+
+	/**
+	 * The property with which the managed configurations are tagged with the
+	 * partition they aggregate (only set for partitioned configurations).
+	 */
+	public static final String PARTITION_PROPERTY = "autoconf.partition";
+
+	// the prefix distinguishing partitions from sources in the existing
+	// configurations
+	private static final String PARTITION_KEY_PREFIX = "partition:";
+
 	// logger (defaults to a system.out directed custom logger)
-	private LogService logger = new PrintStreamLogger(System.out);
+	private LogService logger = PrintStreamLogger.SYSTEM_OUT;
 
 	// the service for creating, updating and deleting the configurations
 	private ConfigurationAdmin configAdmin;
 
-	// the context for e.g. service lookup
-	private BundleContext context;
+	// the dispatcher of service events matching the filter
+	private ServiceEventDispatcher dispatcher;
+
+	// the limit on the rate of changes of all rules together
+	private WriteLimiter writeLimiter;
 
 	// configuration for auto configuration
 	private Config config;
 
+	// the id of the rule, used to find the configurations it created
+	private String ruleId;
+
+	// the compiled specification of the managed configurations
+	private ConfigurationTemplate template;
+
+	// the services matching the filter, maintained incrementally from the
+	// service events in singleton mode, with the snapshot of the properties
+	// referenced by the template
+	private final Map<ServiceReference, Object[]> matchedServices = new HashMap<>();
+
+	// the aggregate values over the matched services in singleton mode,
+	// maintained along with them
+	private AggregatePropertyProvider aggregate;
+
+	// the members (with their aggregate values) per partition and the
+	// partition per member, maintained together with the matched services in
+	// partitioned mode
+	private final Map<String, AggregatePropertyProvider> partitionMembers = new HashMap<>();
+	private final Map<ServiceReference, String> memberPartitions = new HashMap<>();
+
+	// the snapshots of the properties referenced by the template per service
+	// in one for each mode, taken before its configuration is rendered, which
+	// double as the state of the services: a service is matched while it has
+	// a snapshot
+	private final Map<ServiceReference, Object[]> sourceSnapshots = new ConcurrentHashMap<>();
+
 	// the managed configurations
-	private Configuration singletonConfig = null;
-	private final Map<ServiceReference, Configuration> managedConfigs = new HashMap<>();
+	private volatile ManagedConfiguration singletonConfig = null;
+	private final Map<ServiceReference, ManagedConfiguration> managedConfigs = new ConcurrentHashMap<>();
+	private final Map<String, ManagedConfiguration> partitionConfigs = new ConcurrentHashMap<>();
 
-	@Activate
-	public synchronized void activate(BundleContext context, Map<String, Object> props)
-			throws InvalidSyntaxException {
-		this.context = context;
+	// the configurations of services which no longer match, kept for the
+	// linger time by the identity of their service, and the service last
+	// bound to the configuration of each identity
+	private final ConcurrentMap<String, Lingering> lingering = new ConcurrentHashMap<>();
+	private final ConcurrentMap<String, ServiceReference> sources = new ConcurrentHashMap<>();
 
+	// the target (service reference, partition or singleton) of the managed
+	// configurations by their pid, for looking up configuration events
+	private final Map<String, Object> managedPids = new ConcurrentHashMap<>();
+
+	// the listener for changes of the managed configurations made by others
+	private ServiceRegistration driftRegistration;
+
+	// the counters and latencies of this rule, registered as a service (and
+	// optionally as an MBean)
+	private Metrics metrics;
+	private ServiceRegistration metricsRegistration;
+	private ObjectName metricsName;
+
+	// the target of operations on the singleton configuration
+	private static final Object SINGLETON_TARGET = Multiplicity.SINGLETON;
+
+	// a lingering configuration, which is the target of the operation
+	// deleting it unless it was taken over in the meantime (it may linger
+	// again by then, under a new target)
+	private static final class Lingering {
+		final String source;
+		final ManagedConfiguration configuration;
+
+		Lingering(String source, ManagedConfiguration configuration) {
+			this.source = source;
+			this.configuration = configuration;
+		}
+	}
+
+	// the target of operations (re)considering whether the configurations are
+	// materialized in lazy mode
+	private static final Object CONSUMERS_TARGET = new Object();
+
+	// the consumers of the managed configurations in lazy mode, and when the
+	// last one left (guarded by the set)
+	private final Set<ServiceReference> consumers = new HashSet<>();
+	private long consumersLeftTime;
+
+	// whether the managed configurations are materialized, which they always
+	// are unless lazy; operations are applied while holding the lock shared,
+	// dropping the configurations holds it exclusively
+	private volatile boolean materialized = true;
+	private final ReadWriteLock materialization = new ReentrantReadWriteLock();
+
+	private final ServiceListener consumerListener = new ServiceListener() {
+		@Override
+		public void serviceChanged(ServiceEvent event) {
+			AutoConfigurator.this.consumerChanged(event);
+		}
+	};
+
+	// the operations pending to be applied to configuration admin
+	private UpdateQueue updateQueue;
+
+	// the journal of the managed configurations in the data area (if any)
+	private RuleJournal journal;
+
+	// records the service events, if enabled
+	private volatile EventRecording.Writer recorder;
+
+	@Activate
+	public void activate(BundleContext context, Map<String, Object> props)
+			throws InvalidSyntaxException, ParseException {
 		// parse configuration
 		this.config = Configurable.createConfigurable(Config.class, props);
+		this.ruleId = (String) props.get(Constants.SERVICE_PID);
 
-		// listen for changes in matching services
-		context.addServiceListener(this, this.config.filter());
+		// compile the specification of the managed configurations up front
+		try {
+			this.template = ConfigurationTemplate.compile(this.config.configuration());
+		} catch (ParseException e) {
+			this.logger.log(LogService.LOG_ERROR, "Couldn't parse the config spec", e);
+			throw e;
+		}
 
-		// lookup services matching to new filter
-		Set<ServiceReference> matchingServices = this.matchingServices();
+		this.aggregate = new AggregatePropertyProvider(this.template,
+				this.config.aggregateOrder(), this.config.orderProperty(),
+				this.config.aggregateLimit());
+
+		// the operations are applied on threads of their own, so that neither
+		// activation nor the threads registering services are held up by
+		// configuration admin, and no faster than the rate limits allow so that
+		// the consumers of the configurations aren't overwhelmed
+		RateLimiter limiter = new RateLimiter(this.config.writeRate(),
+				this.config.writeBurst(), this.writeLimiter.getLimiter());
+
+		this.updateQueue = new UpdateQueue("AutoConfigurator " + this.config.targetPid(),
+				this.config.coalesceDelay(), this.config.coalesceMaxLatency(),
+				this.config.parallelism(), limiter, new UpdateQueue.Handler() {
+					@Override
+					public void apply(Object target, Operation operation) {
+						AutoConfigurator.this.applyOperation(target);
+					}
+				});
+
+		this.metrics = new Metrics(this.ruleId, this.config.targetPid()) {
+			@Override
+			public int getQueueDepth() {
+				return AutoConfigurator.this.updateQueue.size();
+			}
+
+			@Override
+			public int getManagedConfigurations() {
+				return AutoConfigurator.this.managedConfigs.size()
+						+ AutoConfigurator.this.lingering.size()
+						+ AutoConfigurator.this.partitionConfigs.size()
+						+ (AutoConfigurator.this.singletonConfig == null ? 0 : 1);
+			}
+		};
+
+		this.startRecording(context, props);
+		this.trackConsumers();
+
+		// find the configurations created by an earlier activation (e.g. before
+		// the rule was modified) so that they can be reconciled instead of
+		// being recreated
+		List<Configuration> orphans = new ArrayList<>();
+		Map<String, Configuration> existingConfigs = this.existingConfigurations(orphans);
+
+		// the fingerprints of the existing configurations as they were pushed
+		// by the earlier activation, also across restarts of the framework
+		this.journal = RuleJournal.forRule(context, this.ruleId);
+		Map<String, RuleJournal.Record> journalRecords = this.readJournal();
+
+		// service events are held off until the matching services are queued
+		synchronized (this) {
+			// listen for changes in matching services, and lookup services
+			// matching to new filter
+			Set<ServiceReference> matchingServices = this.dispatcher.addListener(this,
+					this.config.filter());
+
+			for (ServiceReference ref : matchingServices) {
+				this.record(EventRecording.MATCHED, ref);
+			}
 
-		try {
 			switch (this.config.multiplicity()) {
 			case SINGLETON: {
-				// create the singleton configuration
-				this.updateSingletonConfiguration(matchingServices);
+				// this is the only full scan, from here on the membership is
+				// tracked through the service events
+				for (ServiceReference ref : matchingServices) {
+					this.matchedServices.put(ref, this.template.snapshot(ref));
+					this.aggregate.put(ref);
+				}
+
+				// create or update the singleton configuration
+				Configuration existingConfig = existingConfigs.remove(null);
+				if (existingConfig != null) {
+					this.singletonConfig = this.adopt(SINGLETON_TARGET, existingConfig,
+							journalRecords.get(null));
+				}
+
+				this.updateQueue.add(SINGLETON_TARGET, Operation.UPDATE);
 				break;
 			}
 			case ONE_FOR_EACH: {
-				// create configurations for all matched services
+				// take over the existing configurations of matched services
+				for (ServiceReference ref : matchingServices) {
+					String source = this.sourceOf(ref);
+					Configuration existingConfig = existingConfigs.remove(source);
+					if (existingConfig != null) {
+						this.bind(ref, this.adopt(ref, existingConfig, journalRecords.get(source)));
+					}
+				}
+
+				// create (or update) configurations for all matched services, an
+				// existing configuration must not be forgotten when the create
+				// is cancelled out by the service no longer matching
 				for (ServiceReference ref : matchingServices) {
-					this.createManagedConfiguration(ref);
+					this.sourceSnapshots.put(ref, this.template.snapshot(ref));
+					this.updateQueue.add(ref, this.managedConfigs.containsKey(ref) ? Operation.UPDATE
+							: Operation.CREATE);
 				}
 				break;
 			}
+			case PARTITIONED: {
+				for (ServiceReference ref : matchingServices) {
+					this.matchedServices.put(ref, this.template.snapshot(ref));
+					this.join(ref, this.partitionOf(ref));
+				}
+
+				// take over the existing configurations of the partitions
+				for (String partition : this.partitionMembers.keySet()) {
+					String key = PARTITION_KEY_PREFIX + partition;
+					Configuration existingConfig = existingConfigs.remove(key);
+					if (existingConfig != null) {
+						this.partitionConfigs.put(partition,
+								this.adopt(partition, existingConfig, journalRecords.get(key)));
+					}
+
+					this.updateQueue.add(partition, Operation.UPDATE);
+				}
+				break;
 			}
-		} catch (Exception e) {
-			this.logger.log(LogService.LOG_ERROR, "Couldn't create configuration", e);
+			}
+		}
+
+		// remove the configurations for services which no longer match
+		orphans.addAll(existingConfigs.values());
+		List<ManagedConfiguration> orphanConfigs = new ArrayList<>();
+		for (Configuration orphan : orphans) {
+			orphanConfigs.add(new ManagedConfiguration(orphan));
 		}
+		this.deleteConfigurations("Deleting orphaned configurations", orphanConfigs,
+				this.deadline());
+
+		this.registerMetrics(context);
+		this.registerDriftListener(context);
 	}
 
 	@Deactivate
-	public synchronized void deactivate(BundleContext context) {
-		context.removeServiceListener(this);
+	public void deactivate(BundleContext context, int reason) {
+		long deadline = this.deadline();
+
+		this.unregisterMetrics();
+		this.unregisterDriftListener();
+		this.dispatcher.removeListener(this);
+		this.dispatcher.removeListener(this.consumerListener);
+		this.stopRecording();
+
+		// wait for the operation being applied, pending operations are moot as
+		// all configurations are deleted
+		if (!this.updateQueue.close(TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime()))) {
+			this.logger.log(LogService.LOG_WARNING,
+					"Timed out waiting for pending configuration operations");
+		}
 
-		for (Configuration managedConfiguration : this.managedConfigs.values()) {
-			this.deleteConfiguration(managedConfiguration);
+		// if the rule is modified it is activated again right away, and if the
+		// framework is shut down it is activated again on restart, the
+		// configurations are then reconciled with the (modified) rule
+		if (reason == ComponentConstants.DEACTIVATION_REASON_CONFIGURATION_MODIFIED
+				|| (reason == ComponentConstants.DEACTIVATION_REASON_BUNDLE_STOPPED
+						&& isFrameworkStopping(context))) {
+			this.writeJournal();
+		} else {
+			List<ManagedConfiguration> configurations = new ArrayList<>();
+			configurations.addAll(this.managedConfigs.values());
+			for (Lingering lingering : this.lingering.values()) {
+				configurations.add(lingering.configuration);
+			}
+			configurations.addAll(this.partitionConfigs.values());
+			if (this.singletonConfig != null) {
+				configurations.add(this.singletonConfig);
+			}
+
+			this.deleteConfigurations("Deleting managed configurations", configurations,
+					deadline);
+
+			if (this.journal != null) {
+				this.journal.delete();
+			}
 		}
 
 		this.managedConfigs.clear();
+		this.lingering.clear();
+		this.sources.clear();
+		this.partitionConfigs.clear();
+		this.managedPids.clear();
+		this.sourceSnapshots.clear();
+		this.singletonConfig = null;
 
-		this.deleteSingletonConfiguration();
+		synchronized (this.consumers) {
+			this.consumers.clear();
+		}
+
+		synchronized (this) {
+			this.matchedServices.clear();
+			this.partitionMembers.clear();
+			this.memberPartitions.clear();
+		}
+
+		if (this.isLoggable(LogService.LOG_INFO)) {
+			this.logger.log(LogService.LOG_INFO, "Deactivated rule " + this.metrics);
+		}
 	}
 
 	@Reference(optional = true)
@@ -119,89 +430,526 @@ public class AutoConfigurator implements ServiceListener {
 		this.configAdmin = configAdmin;
 	}
 
+	@Reference
+	public void setDispatcher(ServiceEventDispatcher dispatcher) {
+		this.dispatcher = dispatcher;
+	}
+
+	@Reference
+	public void setWriteLimiter(WriteLimiter writeLimiter) {
+		this.writeLimiter = writeLimiter;
+	}
+
 	@Override
-	public synchronized void serviceChanged(ServiceEvent event) {
+	public void serviceChanged(ServiceEvent event) {
 		ServiceReference ref = event.getServiceReference();
+		this.metrics.eventReceived(event.getType());
+		this.record(event.getType(), ref);
 
 		switch (this.config.multiplicity()) {
 		case SINGLETON: {
-			try {
-				this.updateSingletonConfiguration(this.matchingServices());
-			} catch (Exception e) {
-				this.logger.log(LogService.LOG_ERROR, "Unable to process service changed event", e);
+			// the membership is shared by all events
+			synchronized (this) {
+				boolean changed = false;
+
+				switch (event.getType()) {
+				case ServiceEvent.REGISTERED:
+				case ServiceEvent.MODIFIED:
+					// a modified service may have just started to match the
+					// filter, either way its properties need to be re-read
+					// unless none of the referenced ones (nor its place in the
+					// aggregates) changed
+					Object[] snapshot = this.matchedServices.get(ref);
+					if (snapshot != null && event.getType() == ServiceEvent.MODIFIED
+							&& this.template.isUnchanged(ref, snapshot)
+							&& this.aggregate.isInPlace(ref)) {
+						this.metrics.unchangedEvents.incrementAndGet();
+					} else {
+						// services outside of a limited aggregate don't count
+						this.matchedServices.put(ref, this.template.snapshot(ref));
+						changed = this.aggregate.put(ref);
+					}
+					break;
+				case ServiceEvent.MODIFIED_ENDMATCH:
+				case ServiceEvent.UNREGISTERING:
+					this.matchedServices.remove(ref);
+					changed = this.aggregate.remove(ref);
+					break;
+				}
+
+				if (changed) {
+					this.updateQueue.add(SINGLETON_TARGET, Operation.UPDATE);
+				}
 			}
 			break;
 		}
 		case ONE_FOR_EACH: {
-			try {
+			// events only change the state of their own service, the lock
+			// merely holds them off during activation; the update queue keeps
+			// the operations per service in order
+			synchronized (this) {
+				Object[] snapshot = this.sourceSnapshots.get(ref);
+
 				switch (event.getType()) {
 				case ServiceEvent.REGISTERED:
-					this.createManagedConfiguration(ref);
+				case ServiceEvent.MODIFIED:
+					if (snapshot == null) {
+						// the service started to match
+						this.sourceSnapshots.put(ref, this.template.snapshot(ref));
+						this.updateQueue.add(ref, Operation.CREATE);
+					} else if (event.getType() == ServiceEvent.MODIFIED
+							&& this.template.isUnchanged(ref, snapshot)) {
+						// skip modifications which don't touch the referenced
+						// properties
+						this.metrics.unchangedEvents.incrementAndGet();
+					} else {
+						// the snapshot is replaced before the operation is
+						// queued so that the rendering reads the properties
+						// after it
+						this.sourceSnapshots.put(ref, this.template.snapshot(ref));
+						this.updateQueue.add(ref, Operation.UPDATE);
+					}
 					break;
+				case ServiceEvent.MODIFIED_ENDMATCH:
+				case ServiceEvent.UNREGISTERING:
+					// the service stopped to match (if it did match)
+					if (snapshot != null) {
+						this.sourceSnapshots.remove(ref);
+						this.updateQueue.add(ref, Operation.DELETE);
+					}
+					break;
+				}
+			}
+			break;
+		}
+		case PARTITIONED: {
+			// like singleton mode, but an event only affects the partition(s)
+			// of the service
+			synchronized (this) {
+				String previous = this.memberPartitions.get(ref);
+
+				switch (event.getType()) {
+				case ServiceEvent.REGISTERED:
 				case ServiceEvent.MODIFIED:
-					this.updateManagedConfiguration(ref);
+					String partition = this.partitionOf(ref);
+					Object[] snapshot = this.matchedServices.get(ref);
+					if (snapshot != null && event.getType() == ServiceEvent.MODIFIED
+							&& partition.equals(previous)
+							&& this.template.isUnchanged(ref, snapshot)
+							&& this.partitionMembers.get(previous).isInPlace(ref)) {
+						this.metrics.unchangedEvents.incrementAndGet();
+						break;
+					}
+
+					this.matchedServices.put(ref, this.template.snapshot(ref));
+
+					// the service moves if the partition property changed
+					if (previous != null && !previous.equals(partition)
+							&& this.leave(ref, previous)) {
+						this.updateQueue.add(previous, Operation.UPDATE);
+					}
+
+					if (this.join(ref, partition)) {
+						this.updateQueue.add(partition, Operation.UPDATE);
+					}
 					break;
+				case ServiceEvent.MODIFIED_ENDMATCH:
 				case ServiceEvent.UNREGISTERING:
-					this.deleteManagedConfiguration(ref);
+					if (previous != null) {
+						this.matchedServices.remove(ref);
+						if (this.leave(ref, previous)) {
+							this.updateQueue.add(previous, Operation.UPDATE);
+						}
+					}
 					break;
 				}
-			} catch (Exception e) {
-				this.logger.log(LogService.LOG_ERROR, "Unable to process service changed event", e);
 			}
 			break;
 		}
 		}
 	}
 
-	private void updateSingletonConfiguration(Set<ServiceReference> matchingServices)
-			throws IOException, ParseException {
+	// the partition of a service: the value of the partition property if
+	// configured and set, otherwise a stable hash of its identity
+	private String partitionOf(ServiceReference ref) {
+		String property = this.config.partitionProperty();
+		if (property != null && property.length() > 0) {
+			Object value = ref.getProperty(property);
+			if (value != null) {
+				return String.valueOf(value);
+			}
+		}
+
+		Object identity = ref.getProperty(Constants.SERVICE_PID);
+		if (identity == null) {
+			identity = ref.getProperty(Constants.SERVICE_ID);
+		}
+
+		int partitions = Math.max(1, this.config.partitions());
+		return String.valueOf((String.valueOf(identity).hashCode() & Integer.MAX_VALUE)
+				% partitions);
+	}
+
+	// must be called while holding the lock on this, joining the partition
+	// again refreshes the aggregate values of the service; returns whether
+	// the aggregate values of the partition changed
+	private boolean join(ServiceReference ref, String partition) {
+		AggregatePropertyProvider members = this.partitionMembers.get(partition);
+		if (members == null) {
+			members = new AggregatePropertyProvider(this.template,
+					this.config.aggregateOrder(), this.config.orderProperty(),
+					this.config.aggregateLimit());
+			this.partitionMembers.put(partition, members);
+		}
+
+		this.memberPartitions.put(ref, partition);
+		return members.put(ref);
+	}
+
+	// must be called while holding the lock on this, returns whether the
+	// aggregate values of the partition changed
+	private boolean leave(ServiceReference ref, String partition) {
+		this.memberPartitions.remove(ref);
+
+		AggregatePropertyProvider members = this.partitionMembers.get(partition);
+		if (members == null || !members.remove(ref)) {
+			return false;
+		}
+
+		if (members.isEmpty()) {
+			this.partitionMembers.remove(partition);
+		}
+
+		return true;
+	}
+
+	// invoked on the threads of the update queue, which applies operations on
+	// the same target one at a time and in order (until deactivation), the
+	// configurations are brought in line with the current state rather than
+	// with the operation
+	private void applyOperation(Object target) {
 		try {
-			Properties props = this.createProperties(this.config.configuration(),
-					new AggregatePropertyProvider(this.matchingServices()));
+			this.apply(target);
+		} catch (Exception e) {
+			this.logger.log(LogService.LOG_ERROR, "Unable to apply pending operation", e);
+		}
+	}
 
-			if (this.singletonConfig == null) {
-				this.singletonConfig = this.createConfiguration(props);
-			} else {
-				this.singletonConfig.update(props);
+	private void apply(Object target) throws IOException {
+		if (target == CONSUMERS_TARGET) {
+			this.updateMaterialization();
+			return;
+		}
+
+		// the configurations aren't dropped while being applied
+		this.materialization.readLock().lock();
+		try {
+			// in lazy mode the state is only kept in memory until a consumer
+			// appears, all targets are applied then
+			if (this.materialized) {
+				this.applyTo(target);
 			}
-		} catch (InvalidSyntaxException e) {
-			this.logger.log(LogService.LOG_ERROR, "Invalid filter syntax", e);
+		} finally {
+			this.materialization.readLock().unlock();
 		}
 	}
 
-	private void deleteSingletonConfiguration() {
-		if (this.singletonConfig != null) {
-			this.deleteConfiguration(this.singletonConfig);
+	private void applyTo(Object target) throws IOException {
+		if (target == SINGLETON_TARGET) {
+			this.updateSingletonConfiguration();
+			return;
+		} else if (target instanceof String) {
+			this.updatePartitionConfiguration((String) target);
+			return;
+		} else if (target instanceof Lingering) {
+			Lingering expired = (Lingering) target;
+			if (this.lingering.remove(expired.source, expired)) {
+				this.deleteConfiguration(expired.configuration);
+			}
+			return;
+		}
+
+		ServiceReference ref = (ServiceReference) target;
+
+		// the state of the service decides, so that the configuration is exact
+		// however the events on the service raced each other; the service may
+		// also have been unregistered after it was found on activation,
+		// without its unregistration being queued after it
+		if (this.sourceSnapshots.containsKey(ref) && ref.getBundle() != null) {
+			// creates the configuration if there is none
+			this.updateManagedConfiguration(ref);
+		} else {
+			this.deleteManagedConfiguration(ref);
 		}
 	}
 
-	private Configuration createManagedConfiguration(ServiceReference ref) throws IOException,
-			ParseException {
+	// in lazy mode, listen for the consumers of the managed configurations;
+	// the configurations existing from an earlier activation are dropped
+	// after the grace period if there is no consumer
+	private void trackConsumers() throws InvalidSyntaxException {
+		if (!this.config.lazy()) {
+			this.materialized = true;
+			return;
+		}
+
+		String filter = this.config.consumerFilter();
+		if (filter == null || filter.length() == 0) {
+			filter = String.format("(&(%s=%s)(%s=%s))", Constants.OBJECTCLASS,
+					(this.config.factory() ? ManagedServiceFactory.class : ManagedService.class)
+							.getName(), Constants.SERVICE_PID, escapeFilterValue(this.config
+							.targetPid()));
+		}
+
+		synchronized (this.consumers) {
+			this.consumers.addAll(this.dispatcher.addListener(this.consumerListener, filter));
+			this.consumersLeftTime = System.nanoTime();
+			this.materialized = !this.consumers.isEmpty();
+		}
+
+		if (!this.materialized) {
+			this.updateQueue.addLater(CONSUMERS_TARGET, Operation.UPDATE,
+					this.config.lazyGracePeriod());
+		}
+	}
+
+	private void consumerChanged(ServiceEvent event) {
+		ServiceReference ref = event.getServiceReference();
+
+		synchronized (this.consumers) {
+			switch (event.getType()) {
+			case ServiceEvent.REGISTERED:
+			case ServiceEvent.MODIFIED:
+				if (this.consumers.add(ref) && this.consumers.size() == 1) {
+					this.updateQueue.add(CONSUMERS_TARGET, Operation.UPDATE);
+				}
+				break;
+			case ServiceEvent.MODIFIED_ENDMATCH:
+			case ServiceEvent.UNREGISTERING:
+				if (this.consumers.remove(ref) && this.consumers.isEmpty()) {
+					this.consumersLeftTime = System.nanoTime();
+					this.updateQueue.addLater(CONSUMERS_TARGET, Operation.UPDATE,
+							this.config.lazyGracePeriod());
+				}
+				break;
+			}
+		}
+	}
+
+	// materialize the configurations if a consumer appeared, or drop them if
+	// the last consumer left at least the grace period ago
+	private void updateMaterialization() {
+		boolean present;
+		long remaining;
+		synchronized (this.consumers) {
+			present = !this.consumers.isEmpty();
+			remaining = this.config.lazyGracePeriod()
+					- TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - this.consumersLeftTime);
+		}
+
+		if (present) {
+			if (!this.materialized) {
+				if (this.isLoggable(LogService.LOG_INFO)) {
+					this.logger.log(LogService.LOG_INFO, "Materializing the configurations of "
+							+ this.config.targetPid() + ", a consumer appeared");
+				}
+				this.materialized = true;
+				this.queueAll();
+			}
+		} else if (remaining > 0) {
+			// a consumer came and left again in the meantime
+			this.updateQueue.addLater(CONSUMERS_TARGET, Operation.UPDATE, remaining);
+		} else {
+			this.dropConfigurations();
+		}
+	}
+
+	// queue an update of all configurations, which creates the missing ones
+	// and deletes the ones (e.g. adopted on activation) whose source left
+	// while the operations weren't applied
+	private void queueAll() {
+		synchronized (this) {
+			switch (this.config.multiplicity()) {
+			case SINGLETON:
+				this.updateQueue.add(SINGLETON_TARGET, Operation.UPDATE);
+				break;
+			case ONE_FOR_EACH:
+				for (ServiceReference ref : this.sourceSnapshots.keySet()) {
+					this.updateQueue.add(ref, Operation.UPDATE);
+				}
+				for (ServiceReference ref : this.managedConfigs.keySet()) {
+					this.updateQueue.add(ref, Operation.UPDATE);
+				}
+				break;
+			case PARTITIONED:
+				for (String partition : this.partitionMembers.keySet()) {
+					this.updateQueue.add(partition, Operation.UPDATE);
+				}
+				for (String partition : this.partitionConfigs.keySet()) {
+					this.updateQueue.add(partition, Operation.UPDATE);
+				}
+				break;
+			}
+		}
+	}
+
+	// delete the configurations while there is no consumer, the matched
+	// services are still tracked
+	private void dropConfigurations() {
+		List<ManagedConfiguration> configurations = new ArrayList<>();
+
+		this.materialization.writeLock().lock();
 		try {
-			Properties props = this.createProperties(this.config.configuration(),
-					new BasicPropertyProvider(ref));
+			this.materialized = false;
+
+			configurations.addAll(this.managedConfigs.values());
+			for (Lingering lingering : this.lingering.values()) {
+				configurations.add(lingering.configuration);
+			}
+			configurations.addAll(this.partitionConfigs.values());
+			if (this.singletonConfig != null) {
+				configurations.add(this.singletonConfig);
+			}
+
+			this.managedConfigs.clear();
+			this.lingering.clear();
+			this.sources.clear();
+			this.partitionConfigs.clear();
+			this.singletonConfig = null;
+		} finally {
+			this.materialization.writeLock().unlock();
+		}
+
+		if (!configurations.isEmpty()) {
+			if (this.isLoggable(LogService.LOG_INFO)) {
+				this.logger.log(LogService.LOG_INFO, "Dropping the configurations of "
+						+ this.config.targetPid() + ", no consumer left");
+			}
+			this.deleteConfigurations("Dropping configurations", configurations,
+					this.deadline());
+		}
+	}
+
+	private void updateSingletonConfiguration() throws IOException {
+		// render while holding off service events, which change the membership
+		RenderedProperties props;
+		synchronized (this) {
+			props = this.render(this.aggregate);
+		}
 
-			Configuration managedConfig = this.createConfiguration(props);
-			this.managedConfigs.put(ref, managedConfig);
+		this.tag(props, null);
 
+		// (re)create the configuration if it was deleted by someone else
+		if (this.singletonConfig == null || this.singletonConfig.isDeleted()) {
+			this.singletonConfig = this.createConfiguration(SINGLETON_TARGET, props);
+		} else {
+			this.updateConfiguration(this.singletonConfig, props);
+		}
+	}
+
+	private void updatePartitionConfiguration(String partition) throws IOException {
+		// render while holding off service events, which change the members
+		RenderedProperties props = null;
+		synchronized (this) {
+			AggregatePropertyProvider members = this.partitionMembers.get(partition);
+			if (members != null) {
+				props = this.render(members);
+			}
+		}
+
+		ManagedConfiguration partitionConfig = this.partitionConfigs.get(partition);
+
+		// the last member left the partition
+		if (props == null) {
+			if (partitionConfig != null) {
+				this.partitionConfigs.remove(partition);
+				this.deleteConfiguration(partitionConfig);
+			}
+			return;
+		}
+
+		this.tag(props, null);
+		if (this.ruleId != null) {
+			props.put(PARTITION_PROPERTY, partition);
+		}
+
+		if (partitionConfig == null || partitionConfig.isDeleted()) {
+			this.partitionConfigs.put(partition, this.createConfiguration(partition, props));
+		} else {
+			this.updateConfiguration(partitionConfig, props);
+		}
+	}
+
+	private ManagedConfiguration createManagedConfiguration(ServiceReference ref)
+			throws IOException {
+		RenderedProperties props = this.render(new BasicPropertyProvider(ref));
+		this.tag(props, ref);
+
+		// take over the configuration of an earlier service with the same
+		// identity rather than creating a new one
+		ManagedConfiguration managedConfig = this.takeOver(ref);
+		if (managedConfig != null) {
+			this.managedPids.put(managedConfig.getPid(), ref);
+			this.bind(ref, managedConfig);
+			this.updateConfiguration(managedConfig, props);
 			return managedConfig;
-		} catch (ParseException e) {
-			this.logger.log(LogService.LOG_ERROR, "Couldn't parse the config spec", e);
-			throw e;
 		}
+
+		managedConfig = this.createConfiguration(ref, props);
+		this.bind(ref, managedConfig);
+
+		return managedConfig;
 	}
 
-	private void updateManagedConfiguration(ServiceReference ref) throws IOException,
-			ParseException {
-		Configuration managedConfiguration = this.managedConfigs.get(ref);
+	private void bind(ServiceReference ref, ManagedConfiguration managedConfig) {
+		this.managedConfigs.put(ref, managedConfig);
+		if (this.config.lingerTime() > 0) {
+			this.sources.put(this.sourceOf(ref), ref);
+		}
+	}
+
+	// the lingering configuration with the identity of the service, or the
+	// configuration of the service it replaces if that one's unregistration
+	// hasn't been applied yet (the services are applied in parallel)
+	private ManagedConfiguration takeOver(ServiceReference ref) {
+		if (this.config.lingerTime() <= 0) {
+			return null;
+		}
+
+		String source = this.sourceOf(ref);
+		Lingering lingering = this.lingering.remove(source);
+		ManagedConfiguration managedConfig = lingering == null ? null : lingering.configuration;
+
+		if (managedConfig == null) {
+			ServiceReference previous = this.sources.get(source);
+			if (previous != null && previous != ref && !this.sourceSnapshots.containsKey(previous)) {
+				managedConfig = this.managedConfigs.remove(previous);
+			}
+		}
+
+		if (managedConfig == null || managedConfig.isDeleted()) {
+			return null;
+		}
+
+		if (this.isLoggable(LogService.LOG_DEBUG)) {
+			this.logger.log(LogService.LOG_DEBUG, "Took over configuration "
+					+ managedConfig.getPid());
+		}
+		return managedConfig;
+	}
+
+	private void updateManagedConfiguration(ServiceReference ref) throws IOException {
+		ManagedConfiguration managedConfiguration = this.managedConfigs.get(ref);
+
+		// (re)create the configuration if it was deleted by someone else
+		if (managedConfiguration == null || managedConfiguration.isDeleted()) {
+			this.createManagedConfiguration(ref);
+			return;
+		}
 
 		try {
-			Properties newProps = this.createProperties(this.config.configuration(),
-					new BasicPropertyProvider(ref));
-			managedConfiguration.update(newProps);
-		} catch (ParseException e) {
-			this.logger.log(LogService.LOG_ERROR, "Couldn't parse the configuration", e);
-			throw e;
+			RenderedProperties newProps = this.render(new BasicPropertyProvider(ref));
+			this.tag(newProps, ref);
+			this.updateConfiguration(managedConfiguration, newProps);
 		} catch (Exception e) {
 			this.logger.log(LogService.LOG_ERROR, "Couldn't update the configuration", e);
 			throw e;
@@ -209,15 +957,43 @@ public class AutoConfigurator implements ServiceListener {
 	}
 
 	private void deleteManagedConfiguration(ServiceReference ref) {
-		Configuration managedConfiguration = this.managedConfigs.remove(ref);
+		this.sourceSnapshots.remove(ref);
+		ManagedConfiguration managedConfiguration = this.managedConfigs.remove(ref);
+
+		if (managedConfiguration == null) {
+			return;
+		}
+
+		// keep the configuration for a service with the same identity
+		long linger = this.config.lingerTime();
+		if (linger > 0 && !managedConfiguration.isDeleted()) {
+			String source = this.sourceOf(ref);
+			Lingering target = new Lingering(source, managedConfiguration);
+			this.sources.remove(source, ref);
+			this.managedPids.put(managedConfiguration.getPid(), target);
+
+			Lingering replaced = this.lingering.put(source, target);
+			if (replaced != null) {
+				this.deleteConfiguration(replaced.configuration);
+			}
 
-		if (managedConfiguration != null) {
-			this.deleteConfiguration(managedConfiguration);
+			this.updateQueue.addLater(target, Operation.DELETE, linger);
+			return;
 		}
+
+		this.deleteConfiguration(managedConfiguration);
+	}
+
+	private RenderedProperties render(PropertyProvider provider) {
+		long start = System.nanoTime();
+		RenderedProperties props = this.template.render(provider);
+		this.metrics.renderLatency.recordSince(start);
+		return props;
 	}
 
-	private Configuration createConfiguration(Properties props) throws IOException {
-		Configuration managedConfiguration = null;
+	private ManagedConfiguration createConfiguration(Object target, RenderedProperties props)
+			throws IOException {
+		Configuration configuration = null;
 
 		String pid = this.config.targetPid();
 		String location = this.config.targetLocation();
@@ -225,119 +1001,477 @@ public class AutoConfigurator implements ServiceListener {
 			location = null;
 		}
 
-		if (this.config.factory()) {
-			managedConfiguration = this.configAdmin.createFactoryConfiguration(pid, location);
-		} else {
-			managedConfiguration = this.configAdmin.getConfiguration(pid, location);
+		long start = System.nanoTime();
+		ManagedConfiguration managedConfiguration;
+		try {
+			if (this.config.factory()) {
+				configuration = this.configAdmin.createFactoryConfiguration(pid, location);
+			} else {
+				configuration = this.configAdmin.getConfiguration(pid, location);
+			}
+
+			managedConfiguration = new ManagedConfiguration(configuration);
+			this.managedPids.put(managedConfiguration.getPid(), target);
+			managedConfiguration.update(props);
+		} catch (IOException | RuntimeException e) {
+			this.metrics.failures.incrementAndGet();
+			throw e;
 		}
 
-		managedConfiguration.update(props);
+		this.metrics.configAdminLatency.recordSince(start);
+		this.metrics.created.incrementAndGet();
 
 		this.logger.log(LogService.LOG_DEBUG, "Created configuration");
 		return managedConfiguration;
 	}
 
-	private void deleteConfiguration(Configuration configuration) {
+	private void updateConfiguration(ManagedConfiguration configuration, RenderedProperties props)
+			throws IOException {
+		long start = System.nanoTime();
+		boolean updated;
+		try {
+			updated = configuration.update(props);
+		} catch (IOException | RuntimeException e) {
+			this.metrics.failures.incrementAndGet();
+			throw e;
+		}
+
+		if (updated) {
+			this.metrics.configAdminLatency.recordSince(start);
+			this.metrics.updated.incrementAndGet();
+		} else {
+			long skipped = this.metrics.skipped.incrementAndGet();
+			if (this.isLoggable(LogService.LOG_DEBUG)) {
+				this.logger.log(LogService.LOG_DEBUG, String.format(
+						"Skipped update of configuration %s, properties unchanged (%d skipped)",
+						configuration.getPid(), skipped));
+			}
+		}
+	}
+
+	private boolean deleteConfiguration(ManagedConfiguration configuration) {
+		// the deletion isn't to be taken for one by someone else
+		this.managedPids.remove(configuration.getPid());
+		if (configuration.isDeleted()) {
+			return true;
+		}
+
+		long start = System.nanoTime();
 		try {
 			configuration.delete();
 		} catch (IllegalStateException | IOException e) {
+			this.metrics.failures.incrementAndGet();
 			this.logger.log(LogService.LOG_INFO, "unable to delete managed configuration");
+			return false;
 		}
+
+		this.metrics.configAdminLatency.recordSince(start);
+		this.metrics.deleted.incrementAndGet();
+		return true;
 	}
 
-	/**
-	 * Create properties from the given property lines. Any references (in the
-	 * format of {name}) are resolved as properties of the given service
-	 * reference.
-	 * 
-	 * @param propertyLines
-	 *            The keys and values as array of strings in the format of
-	 *            key=value.
-	 * @param serviceReference
-	 *            The service reference used to resolve references in the
-	 *            properties
-	 * @throws ParseException
-	 *             Thrown if the property lines aren't correctly formatted.
-	 */
-	private Properties createProperties(String[] propertyLines, PropertyProvider valueProvider)
-			throws ParseException {
-		Properties props = new Properties();
-		for (String prop : propertyLines) {
-			String[] keyValue = prop.split("=", 2);
-			if (keyValue.length != 2) {
-				throw new ParseException(
-						String.format("property %s is not in the format key=value", prop), 0);
-			}
-
-			String key = keyValue[0];
-			String value = keyValue[1];
-
-			int openIdx = value.indexOf('{');
-			int closeIdx = value.indexOf('}');
-
-			// if the value does not contain a reference, or there is no service
-			// registration which can provide the values, use it 'as is'
-			if (openIdx == -1 || closeIdx == -1 || valueProvider == null) {
-				props.setProperty(key, value);
-			}
-
-			// if value is only a reference, get the value from the
-			// serviceReference (which is the context for the reference) as an
-			// object (instead of copying it as a string)
-			else if (openIdx == 0 && closeIdx == value.length() - 1) {
-				String ref = value.substring(1, value.length() - 1);
-				props.put(key, valueProvider.getProperty(ref));
-			}
-
-			// otherwise the value contains multiple references, build a
-			// string from that by replacing all references with the value from
-			// the serviceReference (which is the context for the property
-			// reference)
-			else {
-				Matcher matcher = Pattern.compile("\\{(.*)\\}").matcher(value);
-				StringBuilder valueBuilder = new StringBuilder();
-
-				// find all references and resolve them with values from the
-				// serviceReference (which is the context for the references)
-				int pos = 0;
-				for (; pos < value.length() - 1 && matcher.find(pos); pos = matcher.end() + 1) {
-					// append the text before the reference
-					String text = value.substring(pos, matcher.start());
-					valueBuilder.append(text);
-
-					// get the reference value and append it
-					String ref = matcher.group(1);
-					Object v = valueProvider.getProperty(ref);
-					valueBuilder.append(v);
-				}
+	// delete the given configurations in parallel, those which couldn't be
+	// deleted before the deadline are left behind
+	private void deleteConfigurations(String description,
+			List<ManagedConfiguration> configurations, long deadline) {
+		if (configurations.isEmpty()) {
+			return;
+		}
+
+		BulkOperation.Result<ManagedConfiguration> result = BulkOperation.apply(description
+				+ " of " + this.config.targetPid(), configurations,
+				this.config.bulkParallelism(), deadline, this.logger,
+				new BulkOperation.Action<ManagedConfiguration>() {
+					@Override
+					public boolean apply(ManagedConfiguration configuration) {
+						return AutoConfigurator.this.deleteConfiguration(configuration);
+					}
+				});
 
-				// append the tail
-				if (pos - 1 < value.length()) {
-					valueBuilder.append(value.substring(pos - 1));
+		// log (some of) the pids of the configurations left behind
+		List<ManagedConfiguration> leftBehind = new ArrayList<>(result.failed);
+		leftBehind.addAll(result.unfinished);
+
+		if (!leftBehind.isEmpty()) {
+			List<String> pids = new ArrayList<>();
+			for (ManagedConfiguration configuration : leftBehind) {
+				if (pids.size() == 10) {
+					pids.add("...");
+					break;
 				}
+				pids.add(configuration.getPid());
+			}
 
-				// build the value and set the property
-				props.setProperty(key, valueBuilder.toString());
+			this.logger.log(LogService.LOG_WARNING, String.format(
+					"%d configurations left behind: %s", leftBehind.size(), pids));
+		}
+	}
+
+	// the time by which bulk operations are to be done
+	private long deadline() {
+		return System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(this.config.bulkTimeout());
+	}
+
+	// register the metrics as a service, and as an MBean if enabled
+	private void registerMetrics(BundleContext context) {
+		Hashtable<String, Object> props = new Hashtable<>();
+		if (this.ruleId != null) {
+			props.put(RULE_PROPERTY, this.ruleId);
+		}
+
+		this.metricsRegistration = context.registerService(RuleMetrics.class.getName(),
+				this.metrics, props);
+
+		if (this.config.jmx()) {
+			String rule = this.ruleId == null ? this.config.targetPid() : this.ruleId;
+			try {
+				ObjectName name = new ObjectName(
+						"nl.frensjan.osgi.autoconf:type=AutoConfigurator,rule="
+								+ ObjectName.quote(rule));
+				ManagementFactory.getPlatformMBeanServer().registerMBean(
+						new StandardMBean(this.metrics, RuleMetrics.class, true), name);
+				this.metricsName = name;
+			} catch (JMException e) {
+				this.logger.log(LogService.LOG_WARNING, "Couldn't register the metrics MBean", e);
 			}
 		}
+	}
 
-		return props;
+	private void unregisterMetrics() {
+		if (this.metricsRegistration != null) {
+			try {
+				this.metricsRegistration.unregister();
+			} catch (IllegalStateException e) {
+				// already unregistered along with the bundle
+			}
+			this.metricsRegistration = null;
+		}
+
+		if (this.metricsName != null) {
+			try {
+				ManagementFactory.getPlatformMBeanServer().unregisterMBean(this.metricsName);
+			} catch (JMException e) {
+				this.logger.log(LogService.LOG_WARNING, "Couldn't unregister the metrics MBean",
+						e);
+			}
+			this.metricsName = null;
+		}
+	}
+
+	// start recording the service events to the configured file (if any)
+	private void startRecording(BundleContext context, Map<String, Object> props) {
+		String path = this.config.recordFile();
+		if (path == null || path.length() == 0) {
+			return;
+		}
+
+		File file = new File(path);
+		if (!file.isAbsolute()) {
+			file = context.getDataFile(path);
+		}
+
+		if (file == null) {
+			this.logger.log(LogService.LOG_WARNING, "Can't record service events to " + path
+					+ ", the framework has no file system support");
+			return;
+		}
+
+		try {
+			this.recorder = new EventRecording.Writer(file, props, EventRecording.relevantKeys(
+					this.template, this.config.filter(), this.config.partitionProperty(),
+					this.config.orderProperty()));
+			if (this.isLoggable(LogService.LOG_INFO)) {
+				this.logger.log(LogService.LOG_INFO, "Recording service events to " + file);
+			}
+		} catch (IOException e) {
+			this.logger.log(LogService.LOG_WARNING, "Couldn't record service events to " + file,
+					e);
+		}
+	}
+
+	private void record(int type, ServiceReference ref) {
+		EventRecording.Writer recorder = this.recorder;
+		if (recorder == null) {
+			return;
+		}
+
+		try {
+			recorder.record(type, ref);
+		} catch (IOException e) {
+			this.logger.log(LogService.LOG_WARNING, "Stopped recording service events", e);
+			this.stopRecording();
+		}
+	}
+
+	private void stopRecording() {
+		EventRecording.Writer recorder = this.recorder;
+		if (recorder == null) {
+			return;
+		}
+
+		this.recorder = null;
+		try {
+			recorder.close();
+		} catch (IOException e) {
+			this.logger.log(LogService.LOG_WARNING, "Couldn't close the recording", e);
+		}
 	}
 
-	private Set<ServiceReference> matchingServices() throws InvalidSyntaxException {
-		return this.getServices(this.context, this.config.filter());
+	// whether messages of the given level are logged at all, so that they
+	// needn't be formatted otherwise (a log service decides for itself)
+	private boolean isLoggable(int level) {
+		return !(this.logger instanceof PrintStreamLogger)
+				|| ((PrintStreamLogger) this.logger).isLoggable(level);
+	}
+
+	// listen for changes of the managed configurations made by others, unless
+	// they are to be ignored
+	private void registerDriftListener(BundleContext context) {
+		if (this.config.driftPolicy() == DriftPolicy.IGNORE) {
+			return;
+		}
+
+		this.driftRegistration = context.registerService(ConfigurationListener.class.getName(),
+				new ConfigurationListener() {
+					@Override
+					public void configurationEvent(ConfigurationEvent event) {
+						AutoConfigurator.this.configurationChanged(event);
+					}
+				}, null);
 	}
 
-	private Set<ServiceReference> getServices(BundleContext context, String filter)
-			throws InvalidSyntaxException {
-		ServiceReference[] refs = context.getAllServiceReferences(null, filter);
+	private void unregisterDriftListener() {
+		if (this.driftRegistration != null) {
+			try {
+				this.driftRegistration.unregister();
+			} catch (IllegalStateException e) {
+				// already unregistered along with the bundle
+			}
+			this.driftRegistration = null;
+		}
+	}
+
+	// invoked by configuration admin for the changes of all configurations,
+	// the ones of the managed configurations are found through the index of
+	// their pids, so a change only affects the drifted configuration
+	private void configurationChanged(ConfigurationEvent event) {
+		Object target = this.managedPids.get(event.getPid());
+		if (target == null) {
+			return;
+		}
 
-		if (refs != null) {
-			Set<ServiceReference> refsSet = new HashSet<>();
-			refsSet.addAll(Arrays.asList(refs));
-			return refsSet;
+		// the configuration may have been replaced in the meantime
+		ManagedConfiguration configuration = this.managedConfiguration(target);
+		if (configuration == null || !configuration.getPid().equals(event.getPid())) {
+			return;
+		}
+
+		switch (event.getType()) {
+		case ConfigurationEvent.CM_UPDATED:
+			// the events caused by the updates of this rule are no drift
+			if (!configuration.hasDrifted()) {
+				return;
+			}
+			break;
+		case ConfigurationEvent.CM_DELETED:
+			this.managedPids.remove(event.getPid());
+			configuration.markDeleted();
+			break;
+		default:
+			return;
+		}
+
+		this.metrics.drifted.incrementAndGet();
+		this.logger.log(LogService.LOG_WARNING, String.format(
+				"Configuration %s was %s by someone else", event.getPid(),
+				event.getType() == ConfigurationEvent.CM_DELETED ? "deleted" : "changed"));
+
+		if (this.config.driftPolicy() == DriftPolicy.REPAIR) {
+			// written (or created) again even though the rendered properties
+			// are unchanged
+			configuration.invalidate();
+
+			// lingering configurations are written again when taken over
+			if (!(target instanceof Lingering)) {
+				this.updateQueue.addLater(target, Operation.UPDATE,
+						this.config.driftRepairDelay());
+			}
+		} else if (event.getType() == ConfigurationEvent.CM_UPDATED) {
+			configuration.accept();
+		}
+	}
+
+	private ManagedConfiguration managedConfiguration(Object target) {
+		if (target == SINGLETON_TARGET) {
+			return this.singletonConfig;
+		} else if (target instanceof String) {
+			return this.partitionConfigs.get(target);
+		} else if (target instanceof Lingering) {
+			return ((Lingering) target).configuration;
 		} else {
-			return new HashSet<>(0);
+			return this.managedConfigs.get(target);
 		}
 	}
+
+	// tag the properties with the rule and the source service (if any)
+	private void tag(RenderedProperties props, ServiceReference ref) {
+		if (this.ruleId != null) {
+			props.put(RULE_PROPERTY, this.ruleId);
+
+			if (ref != null) {
+				props.put(SOURCE_PROPERTY, this.sourceOf(ref));
+			}
+		}
+	}
+
+	private String sourceOf(ServiceReference ref) {
+		String property = this.config.identityProperty();
+		if (property != null && property.length() > 0) {
+			Object identity = ref.getProperty(property);
+			if (identity != null) {
+				return String.valueOf(identity);
+			}
+		}
+
+		Object pid = ref.getProperty(Constants.SERVICE_PID);
+		if (pid instanceof String) {
+			return (String) pid;
+		}
+
+		return String.valueOf(ref.getProperty(Constants.SERVICE_ID));
+	}
+
+	private static boolean isFrameworkStopping(BundleContext context) {
+		Bundle systemBundle = context.getBundle(0);
+		return systemBundle != null && systemBundle.getState() == Bundle.STOPPING;
+	}
+
+	// take over an existing configuration for the given target, with the
+	// fingerprint from the journal if it recorded the configuration; a
+	// configuration changed by someone else while the rule was inactive is
+	// handled as drift
+	private ManagedConfiguration adopt(Object target, Configuration configuration,
+			RuleJournal.Record record) {
+		ManagedConfiguration managedConfiguration;
+		if (record != null && record.pid.equals(configuration.getPid())) {
+			managedConfiguration = ManagedConfiguration.adopt(configuration, record.fingerprint);
+
+			if (managedConfiguration.hasDrifted()) {
+				this.metrics.drifted.incrementAndGet();
+				this.logger.log(LogService.LOG_WARNING, String.format(
+						"Configuration %s was changed by someone else while inactive",
+						configuration.getPid()));
+
+				// written again when the target is updated on activation, or
+				// taken as it is
+				if (this.config.driftPolicy() == DriftPolicy.REPAIR) {
+					managedConfiguration.invalidate();
+				} else {
+					managedConfiguration.accept();
+				}
+			}
+		} else {
+			managedConfiguration = ManagedConfiguration.adopt(configuration);
+		}
+
+		this.managedPids.put(managedConfiguration.getPid(), target);
+		return managedConfiguration;
+	}
+
+	private Map<String, RuleJournal.Record> readJournal() {
+		if (this.journal != null) {
+			try {
+				return this.journal.read();
+			} catch (IOException e) {
+				this.logger.log(LogService.LOG_WARNING, "Couldn't read the journal", e);
+			}
+		}
+
+		return new HashMap<>();
+	}
+
+	// record the managed configurations by their source, for the next
+	// activation to take them over
+	private void writeJournal() {
+		if (this.journal == null) {
+			return;
+		}
+
+		Map<String, ManagedConfiguration> configurations = new HashMap<>();
+		for (Map.Entry<ServiceReference, ManagedConfiguration> entry : this.managedConfigs
+				.entrySet()) {
+			configurations.put(this.sourceOf(entry.getKey()), entry.getValue());
+		}
+		for (Map.Entry<String, ManagedConfiguration> entry : this.partitionConfigs.entrySet()) {
+			configurations.put(PARTITION_KEY_PREFIX + entry.getKey(), entry.getValue());
+		}
+		if (this.singletonConfig != null) {
+			configurations.put(null, this.singletonConfig);
+		}
+
+		try {
+			this.journal.write(configurations);
+		} catch (IOException e) {
+			this.logger.log(LogService.LOG_WARNING, "Couldn't write the journal", e);
+		}
+	}
+
+	/**
+	 * Lookup the configurations tagged with the id of this rule, by the
+	 * service they were created for (null for the singleton configuration,
+	 * prefixed with {@link #PARTITION_KEY_PREFIX} for partitions).
+	 * Configurations which can't be reused (for another target pid than the
+	 * current one, or duplicates) are added to the given orphans.
+	 */
+	private Map<String, Configuration> existingConfigurations(List<Configuration> orphans) {
+		Map<String, Configuration> existingConfigs = new HashMap<>();
+
+		if (this.ruleId == null) {
+			return existingConfigs;
+		}
+
+		try {
+			Configuration[] configurations = this.configAdmin.listConfigurations(String.format(
+					"(%s=%s)", RULE_PROPERTY, escapeFilterValue(this.ruleId)));
+
+			if (configurations != null) {
+				for (Configuration configuration : configurations) {
+					String pid = this.config.factory() ? configuration.getFactoryPid()
+							: configuration.getPid();
+					Object source = configuration.getProperties().get(SOURCE_PROPERTY);
+					Object partition = configuration.getProperties().get(PARTITION_PROPERTY);
+
+					String key = source == null ? null : source.toString();
+					if (partition != null) {
+						key = PARTITION_KEY_PREFIX + partition;
+					}
+
+					if (!this.config.targetPid().equals(pid) || existingConfigs.containsKey(key)) {
+						orphans.add(configuration);
+					} else {
+						existingConfigs.put(key, configuration);
+					}
+				}
+			}
+		} catch (IOException | InvalidSyntaxException e) {
+			this.metrics.failures.incrementAndGet();
+			this.logger.log(LogService.LOG_ERROR, "Couldn't list existing configurations", e);
+		}
+
+		return existingConfigs;
+	}
+
+	private static String escapeFilterValue(String value) {
+		StringBuilder escaped = new StringBuilder(value.length());
+
+		for (int i = 0; i < value.length(); i++) {
+			char c = value.charAt(i);
+			if (c == '\\' || c == '*' || c == '(' || c == ')') {
+				escaped.append('\\');
+			}
+			escaped.append(c);
+		}
+
+		return escaped.toString();
+	}
 }
@@ -29,7 +29,13 @@ class BasicPropertyProvider implements PropertyProvider {
 	}
 
 	@Override
-	public Object getProperty(String key) {
-		return this.ref.getProperty(key);
+	public Object getProperty(PropertyReference reference) {
+		// aggregates have no meaning for a single service, they refer to the
+		// service property named like the reference as written (e.g. count)
+		if (reference.getKind() != PropertyReference.Kind.PROPERTY) {
+			return this.ref.getProperty(reference.getExpression());
+		}
+
+		return this.ref.getProperty(reference.getKey());
 	}
 }
\ No newline at end of file
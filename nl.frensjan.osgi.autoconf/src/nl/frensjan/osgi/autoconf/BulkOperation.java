@@ -0,0 +1,180 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package nl.frensjan.osgi.autoconf;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.osgi.service.log.LogService;
+
+/**
+ * Applies an action to a batch of items (e.g. deleting all managed
+ * configurations) on a bounded pool of threads. The progress is logged while
+ * waiting, the items for which the action failed are collected, and the items
+ * not done by the deadline are given up on. The threads are interrupted at the
+ * deadline and given a short grace period to stop, the items they are still
+ * working on after that are reported as unfinished.
+ */
+final class BulkOperation {
+	/**
+	 * The action to apply to each item, invoked on the threads of the bulk
+	 * operation.
+	 */
+	interface Action<T> {
+		/**
+		 * @return Whether the action succeeded.
+		 */
+		boolean apply(T item);
+	}
+
+	/**
+	 * The outcome of a bulk operation.
+	 */
+	static final class Result<T> {
+		final int done;
+		final List<T> failed;
+		final List<T> unfinished;
+
+		Result(int done, List<T> failed, List<T> unfinished) {
+			this.done = done;
+			this.failed = failed;
+			this.unfinished = unfinished;
+		}
+	}
+
+	// the interval at which the progress is logged
+	private static final long PROGRESS_INTERVAL = TimeUnit.SECONDS.toNanos(1);
+
+	// the time the threads are given to stop after being interrupted
+	private static final long GRACE_PERIOD = TimeUnit.MILLISECONDS.toNanos(500);
+
+	private BulkOperation() {
+	}
+
+	/**
+	 * Apply the action to all items, using at most the given number of
+	 * threads.
+	 * 
+	 * @param description
+	 *            The description of the operation used in the log messages.
+	 * @param deadline
+	 *            The time (from {@link System#nanoTime()}) after which the
+	 *            items not done yet are given up on.
+	 */
+	static <T> Result<T> apply(final String description, Collection<T> items,
+			int parallelism, long deadline, LogService logger, final Action<T> action) {
+		final Queue<T> todo = new ConcurrentLinkedQueue<>(items);
+		final Queue<T> failed = new ConcurrentLinkedQueue<>();
+		final Set<T> inFlight = Collections.newSetFromMap(new ConcurrentHashMap<T, Boolean>());
+		final AtomicInteger done = new AtomicInteger();
+
+		int threads = Math.max(1, Math.min(parallelism, items.size()));
+		ExecutorService executor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+			private final AtomicInteger count = new AtomicInteger();
+
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, description + " #" + this.count.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+
+		long start = System.nanoTime();
+
+		// each thread takes items until none are left, or until it is
+		// interrupted at the deadline
+		for (int i = 0; i < threads && !items.isEmpty(); i++) {
+			executor.execute(new Runnable() {
+				@Override
+				public void run() {
+					T item;
+					while (!Thread.currentThread().isInterrupted() && (item = todo.poll()) != null) {
+						inFlight.add(item);
+						try {
+							if (!action.apply(item)) {
+								failed.add(item);
+							}
+							done.incrementAndGet();
+						} finally {
+							inFlight.remove(item);
+						}
+					}
+				}
+			});
+		}
+
+		executor.shutdown();
+
+		try {
+			while (true) {
+				long remaining = deadline - System.nanoTime();
+				if (executor.awaitTermination(Math.max(0, Math.min(PROGRESS_INTERVAL, remaining)),
+						TimeUnit.NANOSECONDS)) {
+					break;
+				} else if (remaining <= 0) {
+					// interrupt the threads and wait briefly for the items
+					// they are working on
+					executor.shutdownNow();
+					executor.awaitTermination(GRACE_PERIOD, TimeUnit.NANOSECONDS);
+					break;
+				}
+
+				logger.log(LogService.LOG_INFO, String.format("%s: %d of %d done", description,
+						done.get(), items.size()));
+			}
+		} catch (InterruptedException e) {
+			executor.shutdownNow();
+			Thread.currentThread().interrupt();
+		}
+
+		// the items which weren't taken before the deadline, and those still
+		// being worked on after the grace period
+		List<T> unfinished = new ArrayList<>(inFlight);
+		for (T item; (item = todo.poll()) != null;) {
+			unfinished.add(item);
+		}
+
+		Result<T> result = new Result<>(done.get(), new ArrayList<>(failed), unfinished);
+
+		long millis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+		if (result.failed.isEmpty() && result.unfinished.isEmpty()) {
+			logger.log(LogService.LOG_DEBUG, String.format("%s: %d done in %d ms", description,
+					result.done, millis));
+		} else {
+			logger.log(LogService.LOG_WARNING, String.format(
+					"%s: %d of %d done in %d ms, %d failed, %d given up on at the deadline",
+					description, result.done, items.size(), millis, result.failed.size(),
+					result.unfinished.size()));
+		}
+
+		return result;
+	}
+}
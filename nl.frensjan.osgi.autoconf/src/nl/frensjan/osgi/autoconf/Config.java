@@ -51,6 +51,137 @@ public interface Config {
 			+ " formatted as key=value, the value can either be a plain string"
 			+ " or references to configuration properties from the triggering"
 			+ " service can be used by specifying {ref}, where ref is the name"
-			+ " of the referenced property.")
+			+ " of the referenced property. The key can be suffixed with the"
+			+ " type to convert the value to, e.g. port:Integer={port} or"
+			+ " ports:Integer[]={array:port}.")
 	String[] configuration();
-}
\ No newline at end of file
+
+	@AD(deflt = "16", required = false, description = "The number of"
+			+ " configurations the matched services are spread over in"
+			+ " PARTITIONED mode, by a stable hash of their service.pid (or"
+			+ " service.id if they have none). Each configuration aggregates the"
+			+ " services in its partition like a SINGLETON configuration.")
+	int partitions();
+
+	@AD(required = false, description = "The service property by which the"
+			+ " matched services are grouped in PARTITIONED mode instead of by"
+			+ " hash, a configuration is managed for each distinct value. The"
+			+ " services without the property are still spread by hash.")
+	String partitionProperty();
+
+	@AD(deflt = "SERVICE_ID", required = false, description = "The order of"
+			+ " the elements of array and concat values: SERVICE_ID,"
+			+ " SERVICE_RANKING (highest first) or PROPERTY (by the value of the"
+			+ " order property).")
+	AggregateOrder aggregateOrder();
+
+	@AD(deflt = "0", required = false, description = "The maximum number of"
+			+ " services in array, concat and count values, the first ones in"
+			+ " aggregate order (e.g. the highest ranked ones with"
+			+ " SERVICE_RANKING). Changes to the other services don't cause a"
+			+ " write. 0 for no limit.")
+	int aggregateLimit();
+
+	@AD(required = false, description = "The service property by which the"
+			+ " elements of array and concat values are ordered if the aggregate"
+			+ " order is PROPERTY.")
+	String orderProperty();
+
+	@AD(deflt = "0", required = false, description = "The time in milliseconds"
+			+ " to wait for further service events before writing the managed"
+			+ " configurations, so that a burst of events results in a single"
+			+ " write per configuration. 0 writes them as soon as possible.")
+	long coalesceDelay();
+
+	@AD(deflt = "1000", required = false, description = "The maximum time in"
+			+ " milliseconds a write may be postponed when coalescing service"
+			+ " events, 0 for no maximum.")
+	long coalesceMaxLatency();
+
+	@AD(deflt = "4", required = false, description = "The number of threads"
+			+ " applying changes to the managed configurations. Changes for"
+			+ " different services are applied in parallel, changes for the"
+			+ " same service are applied in order.")
+	int parallelism();
+
+	@AD(deflt = "false", required = false, description = "Whether the metrics"
+			+ " of this rule are registered as an MBean with the platform MBean"
+			+ " server, next to being registered as a service.")
+	boolean jmx();
+
+	@AD(deflt = "0", required = false, description = "The maximum number of"
+			+ " changes per second applied to the managed configurations of this"
+			+ " rule, 0 for no limit. Changes held back are folded, so only the"
+			+ " latest state of a configuration is written once allowed. The limit"
+			+ " of all rules together is configured on the write limiter.")
+	double writeRate();
+
+	@AD(deflt = "10", required = false, description = "The number of changes"
+			+ " which can be applied at once after a quiet period, before the"
+			+ " rate limit of this rule kicks in.")
+	int writeBurst();
+
+	@AD(deflt = "8", required = false, description = "The number of threads"
+			+ " deleting the managed configurations in bulk, when the rule is"
+			+ " deactivated or when configurations of an earlier activation are"
+			+ " no longer matched.")
+	int bulkParallelism();
+
+	@AD(deflt = "20000", required = false, description = "The maximum time in"
+			+ " milliseconds for deleting the managed configurations in bulk,"
+			+ " including waiting for the changes being applied on deactivation."
+			+ " The configurations not deleted by then are left behind.")
+	long bulkTimeout();
+
+	@AD(deflt = "IGNORE", required = false, description = "What to do when a"
+			+ " managed configuration is changed or deleted by someone else:"
+			+ " IGNORE doesn't watch the configurations, REPAIR writes it again"
+			+ " (reverting the change), ADOPT accepts the change until the"
+			+ " matched services change.")
+	DriftPolicy driftPolicy();
+
+	@AD(deflt = "0", required = false, description = "The time in milliseconds"
+			+ " after which a changed or deleted configuration is repaired, so"
+			+ " that e.g. an operator can make a series of changes first. 0"
+			+ " repairs it as soon as possible.")
+	long driftRepairDelay();
+
+	@AD(deflt = "0", required = false, description = "The time in milliseconds"
+			+ " the configuration of a service which no longer matches is kept in"
+			+ " ONE_FOR_EACH mode, so that it is taken over rather than recreated"
+			+ " if a service with the same identity matches in the meantime (e.g."
+			+ " when the bundle of the service is updated). 0 deletes it right"
+			+ " away.")
+	long lingerTime();
+
+	@AD(required = false, description = "The service property identifying the"
+			+ " source of a configuration in ONE_FOR_EACH mode across"
+			+ " registrations, to find the configurations of earlier activations"
+			+ " and lingering configurations by. Defaults to the service.pid (or"
+			+ " service.id if there is none).")
+	String identityProperty();
+
+	@AD(deflt = "false", required = false, description = "Whether the managed"
+			+ " configurations are only created while a consumer for them is"
+			+ " registered: a ManagedServiceFactory (or ManagedService if the"
+			+ " configuration isn't a factory configuration) with the target pid,"
+			+ " or a service matching the consumer filter. Until then the matched"
+			+ " services are only tracked in memory.")
+	boolean lazy();
+
+	@AD(required = false, description = "The LDAP filter matching the"
+			+ " consumers of the managed configurations in lazy mode, e.g. for"
+			+ " consumers which don't register a ManagedService(Factory).")
+	String consumerFilter();
+
+	@AD(deflt = "60000", required = false, description = "The time in"
+			+ " milliseconds the managed configurations are kept in lazy mode"
+			+ " after the last consumer left, before they are deleted.")
+	long lazyGracePeriod();
+
+	@AD(required = false, description = "The file to record the service"
+			+ " events seen by this rule to, for replaying them outside of an"
+			+ " OSGi framework to reproduce e.g. a slowdown. A relative path is"
+			+ " resolved in the data area of the bundle. Not recorded if empty.")
+	String recordFile();
+}
@@ -0,0 +1,316 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package nl.frensjan.osgi.autoconf;
+
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Objects;
+import java.util.Set;
+
+import org.osgi.framework.ServiceReference;
+
+/**
+ * The specification of a managed configuration (the key=value lines from
+ * {@link Config#configuration()}) compiled into literal segments and property
+ * references. The specification is parsed once when the auto configuration is
+ * activated, rendering it for a service event is then a single walk over the
+ * segments.
+ * <p>
+ * A value which is a single reference keeps the type of the referenced
+ * property, other values are rendered as strings. A key can specify the type
+ * to coerce its value to, as key:Type or key:Type[] (e.g. port:Integer={port}),
+ * so that consumers get typed values instead of having to parse strings. A
+ * suffix which isn't a known type is part of the key. Aggregated arrays are
+ * arrays of strings unless coerced to a typed array.
+ * <p>
+ * The template also knows which service properties it references, a service
+ * modification which doesn't touch any of them can't change the rendered
+ * properties. See {@link #snapshot(ServiceReference)} and
+ * {@link #isUnchanged(ServiceReference, Object[])}.
+ */
+final class ConfigurationTemplate {
+	private static final Object[] EMPTY_SNAPSHOT = new Object[0];
+
+	// the number of properties added to the rendered properties after
+	// rendering (the tags of the auto configurator)
+	private static final int EXTRA_CAPACITY = 2;
+
+	private final String[] keys;
+
+	// per key the type to coerce the value to (null if none), and whether to
+	// coerce it to an array of the type
+	private final PropertyType[] types;
+	private final boolean[] arrayTypes;
+
+	// per key the segments of the value, either literal strings or property
+	// references, and the length of the literal segments
+	private final Object[][] values;
+	private final int[] literalLengths;
+
+	// the (distinct) keys of the service properties referenced by the values,
+	// including the ones an aggregate reference is taken for when rendered for
+	// a single service
+	private final String[] referencedKeys;
+
+	private ConfigurationTemplate(String[] keys, PropertyType[] types, boolean[] arrayTypes,
+			Object[][] values) {
+		this.keys = keys;
+		this.types = types;
+		this.arrayTypes = arrayTypes;
+		this.values = values;
+		this.literalLengths = new int[values.length];
+
+		Set<String> referencedKeys = new LinkedHashSet<>();
+		for (int i = 0; i < values.length; i++) {
+			for (Object segment : values[i]) {
+				if (segment instanceof PropertyReference) {
+					PropertyReference reference = (PropertyReference) segment;
+					if (reference.getKey() != null) {
+						referencedKeys.add(reference.getKey());
+					}
+					referencedKeys.add(reference.getExpression());
+				} else {
+					this.literalLengths[i] += ((String) segment).length();
+				}
+			}
+		}
+
+		this.referencedKeys = referencedKeys.toArray(new String[referencedKeys.size()]);
+	}
+
+	/**
+	 * Compile the given property lines. Any references (in the format of
+	 * {name}) are parsed into {@link PropertyReference}s.
+	 * 
+	 * @param propertyLines
+	 *            The keys and values as array of strings in the format of
+	 *            key=value.
+	 * @throws ParseException
+	 *             Thrown if the property lines aren't correctly formatted.
+	 */
+	static ConfigurationTemplate compile(String[] propertyLines) throws ParseException {
+		if (propertyLines == null) {
+			propertyLines = new String[0];
+		}
+
+		String[] keys = new String[propertyLines.length];
+		PropertyType[] types = new PropertyType[propertyLines.length];
+		boolean[] arrayTypes = new boolean[propertyLines.length];
+		Object[][] values = new Object[propertyLines.length][];
+
+		for (int i = 0; i < propertyLines.length; i++) {
+			String prop = propertyLines[i];
+			String[] keyValue = prop.split("=", 2);
+			if (keyValue.length != 2) {
+				throw new ParseException(
+						String.format("property %s is not in the format key=value", prop), 0);
+			}
+
+			keys[i] = keyValue[0];
+			values[i] = compileValue(keyValue[1]);
+
+			// split off the type (if any), a key may contain a colon otherwise
+			int typeIdx = keys[i].lastIndexOf(':');
+			if (typeIdx != -1) {
+				String typeName = keys[i].substring(typeIdx + 1);
+
+				boolean arrayType = typeName.endsWith("[]");
+				if (arrayType) {
+					typeName = typeName.substring(0, typeName.length() - 2);
+				}
+
+				types[i] = PropertyType.forName(typeName);
+				if (types[i] != null) {
+					keys[i] = keys[i].substring(0, typeIdx);
+					arrayTypes[i] = arrayType;
+				}
+			}
+		}
+
+		return new ConfigurationTemplate(keys, types, arrayTypes, values);
+	}
+
+	private static Object[] compileValue(String value) throws ParseException {
+		List<Object> segments = new ArrayList<>();
+
+		// split the value in text and references, a reference runs from an
+		// opening brace to the first closing brace after it
+		int pos = 0;
+		while (pos < value.length()) {
+			int openIdx = value.indexOf('{', pos);
+			int closeIdx = openIdx == -1 ? -1 : value.indexOf('}', openIdx + 1);
+
+			if (closeIdx == -1) {
+				break;
+			}
+
+			if (openIdx > pos) {
+				segments.add(value.substring(pos, openIdx));
+			}
+
+			segments.add(PropertyReference.parse(value.substring(openIdx + 1, closeIdx)));
+			pos = closeIdx + 1;
+		}
+
+		// append the tail
+		if (pos < value.length() || segments.isEmpty()) {
+			segments.add(value.substring(pos));
+		}
+
+		return segments.toArray();
+	}
+
+	/**
+	 * @return The array and concat references in the values of this template.
+	 */
+	PropertyReference[] getAggregateReferences() {
+		List<PropertyReference> references = new ArrayList<>();
+		for (Object[] segments : this.values) {
+			for (Object segment : segments) {
+				if (segment instanceof PropertyReference) {
+					PropertyReference.Kind kind = ((PropertyReference) segment).getKind();
+					if (kind == PropertyReference.Kind.ARRAY
+							|| kind == PropertyReference.Kind.CONCAT) {
+						references.add((PropertyReference) segment);
+					}
+				}
+			}
+		}
+
+		return references.toArray(new PropertyReference[references.size()]);
+	}
+
+	/**
+	 * @return Whether the value with the given reference is coerced to a typed
+	 *         array.
+	 */
+	boolean isCoercedToArray(PropertyReference reference) {
+		for (int i = 0; i < this.values.length; i++) {
+			if (this.arrayTypes[i]) {
+				for (Object segment : this.values[i]) {
+					if (segment == reference) {
+						return true;
+					}
+				}
+			}
+		}
+
+		return false;
+	}
+
+	/**
+	 * @return The (distinct) keys of the service properties referenced by this
+	 *         template.
+	 */
+	String[] getReferencedKeys() {
+		return this.referencedKeys.clone();
+	}
+
+	/**
+	 * Take the values of the service properties referenced by this template.
+	 * The snapshot must be taken before the properties are rendered, so that a
+	 * modification in between is detected as a change.
+	 */
+	Object[] snapshot(ServiceReference ref) {
+		if (this.referencedKeys.length == 0) {
+			return EMPTY_SNAPSHOT;
+		}
+
+		Object[] snapshot = new Object[this.referencedKeys.length];
+		for (int i = 0; i < snapshot.length; i++) {
+			snapshot[i] = ref.getProperty(this.referencedKeys[i]);
+		}
+
+		return snapshot;
+	}
+
+	/**
+	 * Whether the values of the service properties referenced by this template
+	 * are (deeply) equal to the given snapshot. The comparison doesn't
+	 * allocate, so that services which frequently modify properties which
+	 * aren't referenced (e.g. a heartbeat) are cheap to ignore.
+	 */
+	boolean isUnchanged(ServiceReference ref, Object[] snapshot) {
+		for (int i = 0; i < this.referencedKeys.length; i++) {
+			if (!Objects.deepEquals(snapshot[i], ref.getProperty(this.referencedKeys[i]))) {
+				return false;
+			}
+		}
+
+		return true;
+	}
+
+	/**
+	 * Render the configuration properties. References are resolved with the
+	 * given provider, references which resolve to null are left out.
+	 * 
+	 * @param valueProvider
+	 *            The provider used to resolve references in the values.
+	 * @throws IllegalArgumentException
+	 *             Thrown if a value can't be coerced to the type of its key.
+	 */
+	RenderedProperties render(PropertyProvider valueProvider) {
+		RenderedProperties props = new RenderedProperties(this.keys.length + EXTRA_CAPACITY);
+
+		for (int i = 0; i < this.keys.length; i++) {
+			Object value = this.renderValue(this.values[i], this.literalLengths[i], valueProvider);
+
+			PropertyType type = this.types[i];
+			if (type != null) {
+				value = this.arrayTypes[i] ? type.coerceArray(value) : type.coerce(value);
+			}
+
+			if (value != null) {
+				props.put(this.keys[i], value);
+			}
+		}
+
+		return props;
+	}
+
+	private Object renderValue(Object[] segments, int literalLength,
+			PropertyProvider valueProvider) {
+		// if value is only a reference, get the value from the provider as an
+		// object (instead of copying it as a string)
+		if (segments.length == 1) {
+			Object segment = segments[0];
+			if (segment instanceof PropertyReference) {
+				return valueProvider.getProperty((PropertyReference) segment);
+			} else {
+				return segment;
+			}
+		}
+
+		// otherwise build a string by replacing all references with the value
+		// from the provider
+		StringBuilder valueBuilder = new StringBuilder(literalLength + 16 * segments.length);
+		for (Object segment : segments) {
+			if (segment instanceof PropertyReference) {
+				valueBuilder.append(valueProvider.getProperty((PropertyReference) segment));
+			} else {
+				valueBuilder.append((String) segment);
+			}
+		}
+
+		return valueBuilder.toString();
+	}
+}
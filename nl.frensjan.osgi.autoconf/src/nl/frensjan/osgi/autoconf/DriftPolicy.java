@@ -0,0 +1,45 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package nl.frensjan.osgi.autoconf;
+
+/**
+ * What to do when a managed configuration is changed or deleted by someone
+ * else than the auto configurator (e.g. an operator or another bundle). By
+ * default such changes are ignored, they are only reverted with
+ * {@link #REPAIR}.
+ */
+public enum DriftPolicy {
+	/**
+	 * Write the configuration again as rendered from the matched services, or
+	 * create it again if it was deleted.
+	 */
+	REPAIR,
+
+	/**
+	 * Accept the change: a changed configuration is only written again when
+	 * the matched services change, a deleted configuration is only created
+	 * again when its service changes.
+	 */
+	ADOPT,
+
+	/**
+	 * Don't watch the managed configurations for changes.
+	 */
+	IGNORE
+}
@@ -0,0 +1,409 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package nl.frensjan.osgi.autoconf;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.lang.reflect.Array;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.osgi.framework.Constants;
+import org.osgi.framework.ServiceReference;
+
+/**
+ * The binary format in which the service events seen by an
+ * {@link AutoConfigurator} are recorded, for replaying them outside of an
+ * OSGi framework.
+ * 
+ * A recording starts with a header: a magic number, the version of the
+ * format, the properties of the rule and the keys of the recorded service
+ * properties. It is followed by the services matched when the rule was
+ * activated and the service events, each with the type of the event (0 for a
+ * service matched on activation), the time in nanoseconds since the start of
+ * the recording, the service id and the values of the recorded service
+ * properties (in the order of the keys in the header). Only the relevant
+ * service properties are recorded: the ones referenced by the template or
+ * the filter, and the ones identifying or partitioning the service.
+ */
+final class EventRecording {
+	/**
+	 * The type of the records of the services matched on activation.
+	 */
+	static final int MATCHED = 0;
+
+	private static final int MAGIC = 0x41434556;
+	private static final short VERSION = 1;
+
+	// the attributes in the (comparison) clauses of a filter
+	private static final Pattern FILTER_ATTRIBUTE = Pattern
+			.compile("\\(\\s*([^=<>~()\\s]+)\\s*[<>~]?=");
+
+	// the tags of the types of property values
+	private static final byte NULL = 'N';
+	private static final byte STRING = 'S';
+	private static final byte INTEGER = 'I';
+	private static final byte LONG = 'J';
+	private static final byte DOUBLE = 'D';
+	private static final byte FLOAT = 'F';
+	private static final byte BOOLEAN = 'Z';
+	private static final byte SHORT = 'H';
+	private static final byte BYTE = 'B';
+	private static final byte CHARACTER = 'C';
+	private static final byte ARRAY = '[';
+	private static final byte COLLECTION = '(';
+	private static final byte OTHER = 'T';
+
+	private EventRecording() {
+	}
+
+	/**
+	 * A recorded service event (or a service matched on activation).
+	 */
+	static final class Event {
+		final int type;
+		final long time;
+		final long serviceId;
+		final Map<String, Object> properties;
+
+		Event(int type, long time, long serviceId, Map<String, Object> properties) {
+			this.type = type;
+			this.time = time;
+			this.serviceId = serviceId;
+			this.properties = properties;
+		}
+	}
+
+	/**
+	 * Records the events of a rule to a file.
+	 */
+	static final class Writer implements Closeable {
+		private final DataOutputStream out;
+		private final String[] keys;
+		private final long start = System.nanoTime();
+
+		/**
+		 * @param file
+		 *            The file to record to, replaced if it exists.
+		 * @param ruleProperties
+		 *            The properties of the rule.
+		 * @param keys
+		 *            The keys of the service properties to record.
+		 */
+		Writer(File file, Map<String, Object> ruleProperties, Set<String> keys)
+				throws IOException {
+			File directory = file.getAbsoluteFile().getParentFile();
+			if (directory != null && !directory.isDirectory() && !directory.mkdirs()) {
+				throw new IOException("Couldn't create " + directory);
+			}
+
+			this.out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+			this.keys = keys.toArray(new String[keys.size()]);
+
+			this.out.writeInt(MAGIC);
+			this.out.writeShort(VERSION);
+			writeProperties(this.out, ruleProperties);
+
+			this.out.writeInt(this.keys.length);
+			for (String key : this.keys) {
+				this.out.writeUTF(key);
+			}
+		}
+
+		/**
+		 * Record an event on (or the match on activation of) a service.
+		 */
+		synchronized void record(int type, ServiceReference ref) throws IOException {
+			Object serviceId = ref.getProperty(Constants.SERVICE_ID);
+
+			this.out.writeByte(type);
+			this.out.writeLong(System.nanoTime() - this.start);
+			this.out.writeLong(serviceId instanceof Long ? (Long) serviceId : -1);
+
+			for (String key : this.keys) {
+				writeValue(this.out, ref.getProperty(key));
+			}
+		}
+
+		@Override
+		public synchronized void close() throws IOException {
+			this.out.close();
+		}
+	}
+
+	/**
+	 * Reads the events from a recording.
+	 */
+	static final class Reader implements Closeable {
+		private final DataInputStream in;
+		private final Map<String, Object> ruleProperties;
+		private final String[] keys;
+
+		Reader(File file) throws IOException {
+			this.in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+
+			try {
+				if (this.in.readInt() != MAGIC) {
+					throw new IOException(file + " isn't a recording of service events");
+				}
+
+				short version = this.in.readShort();
+				if (version != VERSION) {
+					throw new IOException("Unsupported recording version " + version);
+				}
+
+				this.ruleProperties = readProperties(this.in);
+
+				this.keys = new String[this.in.readInt()];
+				for (int i = 0; i < this.keys.length; i++) {
+					this.keys[i] = this.in.readUTF();
+				}
+			} catch (IOException e) {
+				this.in.close();
+				throw e;
+			}
+		}
+
+		/**
+		 * @return The properties of the rule the events were recorded for.
+		 */
+		Map<String, Object> getRuleProperties() {
+			return this.ruleProperties;
+		}
+
+		/**
+		 * @return The next event, or null at the end of the recording.
+		 */
+		Event next() throws IOException {
+			int type = this.in.read();
+			if (type < 0) {
+				return null;
+			}
+
+			try {
+				long time = this.in.readLong();
+				long serviceId = this.in.readLong();
+
+				Map<String, Object> properties = new LinkedHashMap<>();
+				for (String key : this.keys) {
+					Object value = readValue(this.in);
+					if (value != null) {
+						properties.put(key, value);
+					}
+				}
+
+				return new Event(type, time, serviceId, properties);
+			} catch (EOFException e) {
+				// the recording was cut off, e.g. the framework was killed
+				return null;
+			}
+		}
+
+		@Override
+		public void close() throws IOException {
+			this.in.close();
+		}
+	}
+
+	/**
+	 * @return The keys of the service properties relevant to a rule: the ones
+	 *         referenced by its template or its filter, and the ones
+	 *         identifying, partitioning or ordering the services.
+	 */
+	static Set<String> relevantKeys(ConfigurationTemplate template, String filter,
+			String... properties) {
+		Set<String> keys = new LinkedHashSet<>();
+		keys.add(Constants.SERVICE_PID);
+		keys.add(Constants.SERVICE_RANKING);
+
+		for (String property : properties) {
+			if (property != null && property.length() > 0) {
+				keys.add(property);
+			}
+		}
+
+		if (filter != null) {
+			Matcher matcher = FILTER_ATTRIBUTE.matcher(filter);
+			while (matcher.find()) {
+				keys.add(matcher.group(1));
+			}
+		}
+
+		for (String key : template.getReferencedKeys()) {
+			keys.add(key);
+		}
+
+		keys.remove(Constants.SERVICE_ID);
+		return keys;
+	}
+
+	private static void writeProperties(DataOutputStream out, Map<String, Object> properties)
+			throws IOException {
+		out.writeInt(properties.size());
+		for (Entry<String, Object> property : properties.entrySet()) {
+			out.writeUTF(property.getKey());
+			writeValue(out, property.getValue());
+		}
+	}
+
+	private static Map<String, Object> readProperties(DataInputStream in) throws IOException {
+		int size = in.readInt();
+		Map<String, Object> properties = new LinkedHashMap<>();
+		for (int i = 0; i < size; i++) {
+			String key = in.readUTF();
+			properties.put(key, readValue(in));
+		}
+
+		return properties;
+	}
+
+	private static void writeValue(DataOutputStream out, Object value) throws IOException {
+		if (value == null) {
+			out.writeByte(NULL);
+		} else if (value instanceof String) {
+			out.writeByte(STRING);
+			out.writeUTF((String) value);
+		} else if (value instanceof Integer) {
+			out.writeByte(INTEGER);
+			out.writeInt((Integer) value);
+		} else if (value instanceof Long) {
+			out.writeByte(LONG);
+			out.writeLong((Long) value);
+		} else if (value instanceof Double) {
+			out.writeByte(DOUBLE);
+			out.writeDouble((Double) value);
+		} else if (value instanceof Float) {
+			out.writeByte(FLOAT);
+			out.writeFloat((Float) value);
+		} else if (value instanceof Boolean) {
+			out.writeByte(BOOLEAN);
+			out.writeBoolean((Boolean) value);
+		} else if (value instanceof Short) {
+			out.writeByte(SHORT);
+			out.writeShort((Short) value);
+		} else if (value instanceof Byte) {
+			out.writeByte(BYTE);
+			out.writeByte((Byte) value);
+		} else if (value instanceof Character) {
+			out.writeByte(CHARACTER);
+			out.writeChar((Character) value);
+		} else if (value.getClass().isArray()) {
+			int length = Array.getLength(value);
+			out.writeByte(ARRAY);
+			out.writeUTF(value.getClass().getComponentType().getName());
+			out.writeInt(length);
+			for (int i = 0; i < length; i++) {
+				writeValue(out, Array.get(value, i));
+			}
+		} else if (value instanceof Collection) {
+			Collection<?> collection = (Collection<?>) value;
+			out.writeByte(COLLECTION);
+			out.writeInt(collection.size());
+			for (Object element : collection) {
+				writeValue(out, element);
+			}
+		} else {
+			// recorded by its string form
+			out.writeByte(OTHER);
+			out.writeUTF(value.toString());
+		}
+	}
+
+	private static Object readValue(DataInputStream in) throws IOException {
+		byte tag = in.readByte();
+		switch (tag) {
+		case NULL:
+			return null;
+		case STRING:
+		case OTHER:
+			return in.readUTF();
+		case INTEGER:
+			return in.readInt();
+		case LONG:
+			return in.readLong();
+		case DOUBLE:
+			return in.readDouble();
+		case FLOAT:
+			return in.readFloat();
+		case BOOLEAN:
+			return in.readBoolean();
+		case SHORT:
+			return in.readShort();
+		case BYTE:
+			return in.readByte();
+		case CHARACTER:
+			return in.readChar();
+		case ARRAY: {
+			Class<?> componentType = componentType(in.readUTF());
+			int length = in.readInt();
+			Object array = Array.newInstance(componentType, length);
+			for (int i = 0; i < length; i++) {
+				Object element = readValue(in);
+				if (element != null && !componentType.isPrimitive()
+						&& !componentType.isInstance(element)) {
+					element = element.toString();
+				}
+				Array.set(array, i, element);
+			}
+			return array;
+		}
+		case COLLECTION: {
+			int size = in.readInt();
+			List<Object> list = new ArrayList<>(size);
+			for (int i = 0; i < size; i++) {
+				list.add(readValue(in));
+			}
+			return list;
+		}
+		default:
+			throw new IOException("Corrupt recording, unknown value type " + (char) tag);
+		}
+	}
+
+	// the component type of a recorded array, arrays of types other than the
+	// primitives and their wrappers are read as string arrays
+	private static Class<?> componentType(String name) {
+		for (Class<?> type : new Class<?>[] { int.class, long.class, double.class,
+				float.class, boolean.class, short.class, byte.class, char.class, String.class,
+				Integer.class, Long.class, Double.class, Float.class, Boolean.class, Short.class,
+				Byte.class, Character.class }) {
+			if (type.getName().equals(name)) {
+				return type;
+			}
+		}
+
+		return String.class;
+	}
+}
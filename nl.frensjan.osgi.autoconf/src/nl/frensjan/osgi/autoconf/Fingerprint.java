@@ -0,0 +1,106 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package nl.frensjan.osgi.autoconf;
+
+import java.lang.reflect.Array;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Dictionary;
+import java.util.Enumeration;
+
+/**
+ * Computes a 64 bit fingerprint (FNV-1a) over a canonical form of
+ * configuration properties: the keys in sorted order, each with the type and
+ * string form of its value (element by element for arrays and collections).
+ * The fingerprint only depends on the content of the properties, not on the
+ * iteration order of the dictionary or the identity of the values, so it is
+ * stable between renderings and between framework restarts.
+ */
+final class Fingerprint {
+	private static final long OFFSET_BASIS = 0xcbf29ce484222325L;
+	private static final long PRIME = 0x100000001b3L;
+
+	private Fingerprint() {
+	}
+
+	static long of(Dictionary<?, ?> props) {
+		String[] keys = new String[props.size()];
+
+		int i = 0;
+		for (Enumeration<?> e = props.keys(); e.hasMoreElements();) {
+			keys[i++] = String.valueOf(e.nextElement());
+		}
+
+		Arrays.sort(keys);
+
+		long hash = OFFSET_BASIS;
+		for (String key : keys) {
+			hash = hash(hash, key);
+			hash = hash(hash, '=');
+			hash = hashValue(hash, props.get(key));
+			hash = hash(hash, '\n');
+		}
+
+		return hash;
+	}
+
+	private static long hashValue(long hash, Object value) {
+		if (value == null) {
+			return hash(hash, '\0');
+		} else if (value.getClass().isArray()) {
+			hash = hash(hash, value.getClass().getComponentType().getName());
+			hash = hash(hash, '[');
+
+			int length = Array.getLength(value);
+			for (int i = 0; i < length; i++) {
+				hash = hashValue(hash, Array.get(value, i));
+				hash = hash(hash, ',');
+			}
+
+			return hash(hash, ']');
+		} else if (value instanceof Collection) {
+			hash = hash(hash, '(');
+
+			for (Object element : (Collection<?>) value) {
+				hash = hashValue(hash, element);
+				hash = hash(hash, ',');
+			}
+
+			return hash(hash, ')');
+		} else {
+			hash = hash(hash, value.getClass().getName());
+			hash = hash(hash, ':');
+			return hash(hash, value.toString());
+		}
+	}
+
+	private static long hash(long hash, String s) {
+		for (int i = 0; i < s.length(); i++) {
+			hash = hash(hash, s.charAt(i));
+		}
+
+		return hash;
+	}
+
+	private static long hash(long hash, char c) {
+		hash = (hash ^ (c & 0xff)) * PRIME;
+		return (hash ^ (c >>> 8)) * PRIME;
+	}
+}
@@ -0,0 +1,71 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package nl.frensjan.osgi.autoconf;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import nl.frensjan.osgi.autoconf.metrics.Latency;
+
+/**
+ * Records durations in a histogram with buckets by powers of two, without
+ * locking or allocating.
+ */
+final class LatencyRecorder {
+	private final AtomicLongArray buckets = new AtomicLongArray(Long.SIZE);
+	private final AtomicLong count = new AtomicLong();
+	private final AtomicLong total = new AtomicLong();
+	private final AtomicLong max = new AtomicLong();
+
+	/**
+	 * Record the time passed since the given start (from
+	 * {@link System#nanoTime()}).
+	 */
+	void recordSince(long start) {
+		this.record(System.nanoTime() - start);
+	}
+
+	void record(long nanos) {
+		if (nanos < 0) {
+			nanos = 0;
+		}
+
+		this.buckets.incrementAndGet(nanos == 0 ? 0 : 63 - Long.numberOfLeadingZeros(nanos));
+		this.count.incrementAndGet();
+		this.total.addAndGet(nanos);
+
+		long max = this.max.get();
+		while (nanos > max && !this.max.compareAndSet(max, nanos)) {
+			max = this.max.get();
+		}
+	}
+
+	/**
+	 * @return The durations recorded so far (the values are read one by one,
+	 *         durations recorded concurrently may be partially included).
+	 */
+	Latency snapshot() {
+		long[] buckets = new long[this.buckets.length()];
+		for (int i = 0; i < buckets.length; i++) {
+			buckets[i] = this.buckets.get(i);
+		}
+
+		return new Latency(this.count.get(), this.total.get(), this.max.get(), buckets);
+	}
+}
@@ -0,0 +1,198 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package nl.frensjan.osgi.autoconf;
+
+import java.io.IOException;
+import java.util.Dictionary;
+import java.util.Enumeration;
+import java.util.Hashtable;
+
+import org.osgi.framework.Constants;
+import org.osgi.service.cm.Configuration;
+import org.osgi.service.cm.ConfigurationAdmin;
+
+/**
+ * A configuration managed by the {@link AutoConfigurator}, together with the
+ * fingerprint of the properties last pushed to it. An update with properties
+ * equal to the ones pushed before is skipped, sparing Configuration Admin the
+ * persistence and the consumers the reconfiguration. The fingerprint also
+ * tells the configuration events caused by these updates apart from changes
+ * made by others.
+ */
+final class ManagedConfiguration {
+	private final Configuration configuration;
+
+	// the pid, which can't be asked from a deleted configuration
+	private final String pid;
+
+	// the fingerprint of the properties last pushed to the configuration
+	private boolean updated = false;
+	private long fingerprint;
+
+	// whether the configuration was deleted by someone else
+	private volatile boolean deleted = false;
+
+	ManagedConfiguration(Configuration configuration) {
+		this.configuration = configuration;
+		this.pid = configuration.getPid();
+	}
+
+	/**
+	 * Take over an existing configuration (e.g. created by an earlier
+	 * activation), taking its current properties as the ones last pushed.
+	 */
+	static ManagedConfiguration adopt(Configuration configuration) {
+		ManagedConfiguration managedConfiguration = new ManagedConfiguration(configuration);
+
+		Dictionary<?, ?> props = configuration.getProperties();
+		if (props != null) {
+			managedConfiguration.updated = true;
+			managedConfiguration.fingerprint = fingerprintOf(props);
+		}
+
+		return managedConfiguration;
+	}
+
+	/**
+	 * Take over an existing configuration, with the fingerprint of the
+	 * properties last pushed to it as known from an earlier activation (e.g.
+	 * from the {@link RuleJournal}).
+	 */
+	static ManagedConfiguration adopt(Configuration configuration, long fingerprint) {
+		ManagedConfiguration managedConfiguration = new ManagedConfiguration(configuration);
+		managedConfiguration.updated = true;
+		managedConfiguration.fingerprint = fingerprint;
+		return managedConfiguration;
+	}
+
+	/**
+	 * Update the configuration with the given properties, unless they are
+	 * equal to the properties it was last updated with.
+	 * 
+	 * @return Whether the configuration was updated.
+	 */
+	synchronized boolean update(Dictionary<?, ?> props) throws IOException {
+		long fingerprint = Fingerprint.of(props);
+		if (this.updated && this.fingerprint == fingerprint) {
+			return false;
+		}
+
+		this.configuration.update(props);
+
+		this.updated = true;
+		this.fingerprint = fingerprint;
+		return true;
+	}
+
+	void delete() throws IOException {
+		this.configuration.delete();
+	}
+
+	/**
+	 * @return Whether the properties of the configuration differ from the ones
+	 *         last pushed to it, i.e. it was changed by someone else. Waits for
+	 *         an update in progress, so that it isn't taken for a change.
+	 */
+	synchronized boolean hasDrifted() {
+		Dictionary<?, ?> props;
+		try {
+			props = this.configuration.getProperties();
+		} catch (IllegalStateException e) {
+			// deleted in the meantime
+			return false;
+		}
+
+		return props != null && (!this.updated || fingerprintOf(props) != this.fingerprint);
+	}
+
+	/**
+	 * Take the current properties of the configuration as the ones last
+	 * pushed, e.g. to accept a change made by someone else.
+	 */
+	synchronized void accept() {
+		try {
+			Dictionary<?, ?> props = this.configuration.getProperties();
+			if (props != null) {
+				this.updated = true;
+				this.fingerprint = fingerprintOf(props);
+			}
+		} catch (IllegalStateException e) {
+			// deleted in the meantime
+		}
+	}
+
+	/**
+	 * Forget the properties last pushed, so that the next update is written
+	 * even if the properties are unchanged.
+	 */
+	synchronized void invalidate() {
+		this.updated = false;
+	}
+
+	/**
+	 * Mark the configuration as deleted by someone else.
+	 */
+	void markDeleted() {
+		this.deleted = true;
+	}
+
+	boolean isDeleted() {
+		return this.deleted;
+	}
+
+	/**
+	 * @return Whether properties were pushed to the configuration.
+	 */
+	synchronized boolean isUpdated() {
+		return this.updated;
+	}
+
+	/**
+	 * @return The fingerprint of the properties last pushed to the
+	 *         configuration.
+	 */
+	synchronized long getFingerprint() {
+		return this.fingerprint;
+	}
+
+	String getPid() {
+		return this.pid;
+	}
+
+	Configuration getConfiguration() {
+		return this.configuration;
+	}
+
+	// the fingerprint of the properties of a configuration, leaving out the
+	// properties set by configuration admin itself
+	private static long fingerprintOf(Dictionary<?, ?> props) {
+		Hashtable<Object, Object> ownProps = new Hashtable<>();
+		for (Enumeration<?> e = props.keys(); e.hasMoreElements();) {
+			Object key = e.nextElement();
+			ownProps.put(key, props.get(key));
+		}
+
+		ownProps.remove(Constants.SERVICE_PID);
+		ownProps.remove(ConfigurationAdmin.SERVICE_FACTORYPID);
+		ownProps.remove(ConfigurationAdmin.SERVICE_BUNDLELOCATION);
+
+		return Fingerprint.of(ownProps);
+	}
+}
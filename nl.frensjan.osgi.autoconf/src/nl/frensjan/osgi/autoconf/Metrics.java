@@ -0,0 +1,165 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package nl.frensjan.osgi.autoconf;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import nl.frensjan.osgi.autoconf.metrics.Latency;
+import nl.frensjan.osgi.autoconf.metrics.RuleMetrics;
+
+import org.osgi.framework.ServiceEvent;
+
+/**
+ * The counters and latencies of an {@link AutoConfigurator}, recorded by the
+ * auto configurator itself and (apart from the queue depth and the number of
+ * managed configurations) maintained by it.
+ */
+abstract class Metrics implements RuleMetrics {
+	private final String ruleId;
+	private final String targetPid;
+
+	final AtomicLong registeredEvents = new AtomicLong();
+	final AtomicLong modifiedEvents = new AtomicLong();
+	final AtomicLong modifiedEndMatchEvents = new AtomicLong();
+	final AtomicLong unregisteringEvents = new AtomicLong();
+	final AtomicLong unchangedEvents = new AtomicLong();
+
+	final AtomicLong created = new AtomicLong();
+	final AtomicLong updated = new AtomicLong();
+	final AtomicLong deleted = new AtomicLong();
+	final AtomicLong skipped = new AtomicLong();
+	final AtomicLong failures = new AtomicLong();
+	final AtomicLong drifted = new AtomicLong();
+
+	final LatencyRecorder renderLatency = new LatencyRecorder();
+	final LatencyRecorder configAdminLatency = new LatencyRecorder();
+
+	Metrics(String ruleId, String targetPid) {
+		this.ruleId = ruleId;
+		this.targetPid = targetPid;
+	}
+
+	void eventReceived(int type) {
+		switch (type) {
+		case ServiceEvent.REGISTERED:
+			this.registeredEvents.incrementAndGet();
+			break;
+		case ServiceEvent.MODIFIED:
+			this.modifiedEvents.incrementAndGet();
+			break;
+		case ServiceEvent.MODIFIED_ENDMATCH:
+			this.modifiedEndMatchEvents.incrementAndGet();
+			break;
+		case ServiceEvent.UNREGISTERING:
+			this.unregisteringEvents.incrementAndGet();
+			break;
+		}
+	}
+
+	@Override
+	public String getRuleId() {
+		return this.ruleId;
+	}
+
+	@Override
+	public String getTargetPid() {
+		return this.targetPid;
+	}
+
+	@Override
+	public long getRegisteredEvents() {
+		return this.registeredEvents.get();
+	}
+
+	@Override
+	public long getModifiedEvents() {
+		return this.modifiedEvents.get();
+	}
+
+	@Override
+	public long getModifiedEndMatchEvents() {
+		return this.modifiedEndMatchEvents.get();
+	}
+
+	@Override
+	public long getUnregisteringEvents() {
+		return this.unregisteringEvents.get();
+	}
+
+	@Override
+	public long getUnchangedEvents() {
+		return this.unchangedEvents.get();
+	}
+
+	@Override
+	public long getCreatedConfigurations() {
+		return this.created.get();
+	}
+
+	@Override
+	public long getUpdatedConfigurations() {
+		return this.updated.get();
+	}
+
+	@Override
+	public long getDeletedConfigurations() {
+		return this.deleted.get();
+	}
+
+	@Override
+	public long getSkippedUpdates() {
+		return this.skipped.get();
+	}
+
+	@Override
+	public long getFailures() {
+		return this.failures.get();
+	}
+
+	@Override
+	public long getDriftedConfigurations() {
+		return this.drifted.get();
+	}
+
+	@Override
+	public Latency getRenderLatency() {
+		return this.renderLatency.snapshot();
+	}
+
+	@Override
+	public Latency getConfigAdminLatency() {
+		return this.configAdminLatency.snapshot();
+	}
+
+	@Override
+	public String toString() {
+		return String.format("%s: events registered=%d modified=%d endmatch=%d unregistering=%d unchanged=%d,"
+				+ " configurations created=%d updated=%d deleted=%d skipped=%d failures=%d"
+				+ " drifted=%d,"
+				+ " queued=%d managed=%d, render %s, config admin %s", this.ruleId,
+				this.getRegisteredEvents(), this.getModifiedEvents(),
+				this.getModifiedEndMatchEvents(), this.getUnregisteringEvents(),
+				this.getUnchangedEvents(),
+				this.getCreatedConfigurations(), this.getUpdatedConfigurations(),
+				this.getDeletedConfigurations(), this.getSkippedUpdates(), this.getFailures(),
+				this.getDriftedConfigurations(),
+				this.getQueueDepth(), this.getManagedConfigurations(), this.getRenderLatency(),
+				this.getConfigAdminLatency());
+	}
+}
@@ -20,5 +20,5 @@
 package nl.frensjan.osgi.autoconf;
 
 public enum Multiplicity {
-	ONE_FOR_EACH, SINGLETON
+	ONE_FOR_EACH, SINGLETON, PARTITIONED
 }
\ No newline at end of file
@@ -16,51 +16,141 @@
  * specific language governing permissions and limitations
  * under the License.
  */
-
 package nl.frensjan.osgi.autoconf;
 
 import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 import org.osgi.framework.ServiceReference;
 import org.osgi.service.log.LogService;
 
+/**
+ * A logger writing a line per message to a print stream, used when no log
+ * service is available. Messages below the threshold level are discarded
+ * before anything is done with them. The others are put in a bounded ring
+ * buffer and written in batches on a background thread, so that logging never
+ * waits for the stream. When the buffer is full messages are dropped, the
+ * number of dropped messages is reported with the next batch.
+ */
 final class PrintStreamLogger implements LogService {
+	/**
+	 * The system property with the threshold level (DEBUG, INFO, WARNING or
+	 * ERROR) of the logger used by default, DEBUG (everything) if not set.
+	 */
+	static final String LEVEL_PROPERTY = "nl.frensjan.osgi.autoconf.log.level";
+
+	/**
+	 * The logger writing to system.out, shared by the auto configurators
+	 * without a log service.
+	 */
+	static final PrintStreamLogger SYSTEM_OUT = new PrintStreamLogger(System.out,
+			levelOf(System.getProperty(LEVEL_PROPERTY)), 1024);
+
+	// the time in seconds after which an idle writer thread stops
+	private static final long WRITER_KEEP_ALIVE = 10;
+
 	private final PrintStream out;
+	private final int threshold;
+
+	// the ring buffer of messages waiting to be written, guarded by this
+	private final int[] levels;
+	private final String[] messages;
+	private final ServiceReference[] refs;
+	private final Throwable[] exceptions;
+	private int head = 0;
+	private int size = 0;
+
+	// the number of messages dropped, in total and since the last batch
+	private long dropped = 0;
+	private long unreported = 0;
+
+	// whether the writer is busy with (or about to start on) the buffer
+	private boolean writing = false;
+
+	private final ThreadPoolExecutor writer;
 
-	public PrintStreamLogger(PrintStream out) {
+	private final Runnable writeTask = new Runnable() {
+		@Override
+		public void run() {
+			PrintStreamLogger.this.write();
+		}
+	};
+
+	/**
+	 * @param out
+	 *            The stream to write to.
+	 * @param threshold
+	 *            The least severe level logged, e.g. LOG_INFO.
+	 * @param capacity
+	 *            The number of messages buffered before messages are dropped.
+	 */
+	PrintStreamLogger(PrintStream out, int threshold, int capacity) {
 		this.out = out;
+		this.threshold = threshold;
+
+		this.levels = new int[capacity];
+		this.messages = new String[capacity];
+		this.refs = new ServiceReference[capacity];
+		this.exceptions = new Throwable[capacity];
+
+		this.writer = new ThreadPoolExecutor(1, 1, WRITER_KEEP_ALIVE, TimeUnit.SECONDS,
+				new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+					@Override
+					public Thread newThread(Runnable r) {
+						Thread thread = new Thread(r, "AutoConfigurator logger");
+						thread.setDaemon(true);
+						return thread;
+					}
+				});
+		this.writer.allowCoreThreadTimeOut(true);
+	}
+
+	/**
+	 * @return Whether messages of the given level are logged.
+	 */
+	boolean isLoggable(int level) {
+		return level <= this.threshold;
+	}
+
+	/**
+	 * @return The number of messages dropped because the buffer was full.
+	 */
+	synchronized long getDropped() {
+		return this.dropped;
 	}
 
 	@Override
 	public void log(ServiceReference sr, int level, String message, Throwable exception) {
-		switch (level) {
-		case LOG_DEBUG:
-			this.out.print("DEBUG");
-			break;
-		case LOG_INFO:
-			this.out.print("INFO");
-			break;
-		case LOG_WARNING:
-			this.out.print("WARNING");
-			break;
-		case LOG_ERROR:
-			this.out.print("ERROR");
-			break;
+		if (!this.isLoggable(level)) {
+			return;
 		}
 
-		this.out.print(" - ");
-		this.out.print(message);
+		synchronized (this) {
+			if (this.size == this.levels.length) {
+				this.dropped++;
+				this.unreported++;
+				return;
+			}
 
-		if (sr != null) {
-			this.out.printf(" for service %s", sr);
-		}
+			int tail = (this.head + this.size) % this.levels.length;
+			this.levels[tail] = level;
+			this.messages[tail] = message;
+			this.refs[tail] = sr;
+			this.exceptions[tail] = exception;
+			this.size++;
 
-		if (exception != null) {
-			this.out.print(" with exception: ");
-			this.out.print(exception.getClass().getName());
-			this.out.print("\n");
-			exception.printStackTrace(this.out);
+			if (this.writing) {
+				return;
+			}
+			this.writing = true;
 		}
+
+		this.writer.execute(this.writeTask);
 	}
 
 	@Override
@@ -77,4 +167,110 @@ final class PrintStreamLogger implements LogService {
 	public void log(int level, String message) {
 		this.log(null, level, message, null);
 	}
-}
\ No newline at end of file
+
+	// invoked on the writer thread, writes the buffered messages until the
+	// buffer is empty, a batch at a time
+	private void write() {
+		StringBuilder batch = new StringBuilder();
+
+		while (true) {
+			// take the buffered messages out of the buffer, the formatting
+			// and writing is done without holding up the loggers
+			int count;
+			long unreported;
+			int[] levels;
+			String[] messages;
+			ServiceReference[] refs;
+			Throwable[] exceptions;
+
+			synchronized (this) {
+				count = this.size;
+				if (count == 0) {
+					this.writing = false;
+					return;
+				}
+
+				levels = new int[count];
+				messages = new String[count];
+				refs = new ServiceReference[count];
+				exceptions = new Throwable[count];
+
+				for (int i = 0; i < count; i++) {
+					int index = (this.head + i) % this.levels.length;
+					levels[i] = this.levels[index];
+					messages[i] = this.messages[index];
+					refs[i] = this.refs[index];
+					exceptions[i] = this.exceptions[index];
+
+					this.messages[index] = null;
+					this.refs[index] = null;
+					this.exceptions[index] = null;
+				}
+
+				this.head = (this.head + count) % this.levels.length;
+				this.size = 0;
+
+				unreported = this.unreported;
+				this.unreported = 0;
+			}
+
+			if (unreported > 0) {
+				format(batch, LOG_WARNING, unreported + " log messages dropped", null, null);
+			}
+
+			for (int i = 0; i < count; i++) {
+				format(batch, levels[i], messages[i], refs[i], exceptions[i]);
+			}
+
+			this.out.print(batch);
+			this.out.flush();
+			batch.setLength(0);
+		}
+	}
+
+	private static void format(StringBuilder line, int level, String message,
+			ServiceReference sr, Throwable exception) {
+		switch (level) {
+		case LOG_DEBUG:
+			line.append("DEBUG");
+			break;
+		case LOG_INFO:
+			line.append("INFO");
+			break;
+		case LOG_WARNING:
+			line.append("WARNING");
+			break;
+		case LOG_ERROR:
+			line.append("ERROR");
+			break;
+		}
+
+		line.append(" - ").append(message);
+
+		if (sr != null) {
+			line.append(" for service ").append(sr);
+		}
+
+		if (exception != null) {
+			StringWriter trace = new StringWriter();
+			exception.printStackTrace(new PrintWriter(trace));
+
+			line.append(" with exception: ").append(exception.getClass().getName());
+			line.append('\n').append(trace);
+		} else {
+			line.append('\n');
+		}
+	}
+
+	private static int levelOf(String name) {
+		if ("INFO".equalsIgnoreCase(name)) {
+			return LOG_INFO;
+		} else if ("WARNING".equalsIgnoreCase(name)) {
+			return LOG_WARNING;
+		} else if ("ERROR".equalsIgnoreCase(name)) {
+			return LOG_ERROR;
+		} else {
+			return LOG_DEBUG;
+		}
+	}
+}
@@ -20,5 +20,5 @@
 package nl.frensjan.osgi.autoconf;
 
 interface PropertyProvider {
-	Object getProperty(String key);
+	Object getProperty(PropertyReference reference);
 }
\ No newline at end of file
@@ -0,0 +1,129 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package nl.frensjan.osgi.autoconf;
+
+import java.text.ParseException;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * A reference to a service property, as written between braces in the
+ * configuration specification (e.g. {service.pid} or {array:service.pid}),
+ * parsed once so that resolving it doesn't involve any string handling.
+ */
+final class PropertyReference {
+	enum Kind {
+		PROPERTY, ARRAY, CONCAT, COUNT
+	}
+
+	private static final String FOREACH_ARRAY = "array:";
+	private static final String FOREACH_CONCAT = "concat:";
+	private static final String FOREACH_COUNT = "count";
+
+	// key:prefix[element-prefix%element-postfix]postfix
+	private static final Pattern CONCAT_PATTERN = Pattern.compile("([^:\\[%]+):([^:\\[%]*)\\[([^:\\[%]*)%([^:\\[%]*)\\]([^:\\[%]*)");
+
+	private final Kind kind;
+	private final String key;
+
+	// the text between the braces
+	private final String expression;
+
+	// the fixed parts of a concat reference
+	private final String prefix;
+	private final String elementPrefix;
+	private final String elementPostfix;
+	private final String postfix;
+
+	private PropertyReference(Kind kind, String key, String expression) {
+		this(kind, key, expression, null, null, null, null);
+	}
+
+	private PropertyReference(Kind kind, String key, String expression, String prefix,
+			String elementPrefix, String elementPostfix, String postfix) {
+		this.kind = kind;
+		this.key = key;
+		this.expression = expression;
+		this.prefix = prefix;
+		this.elementPrefix = elementPrefix;
+		this.elementPostfix = elementPostfix;
+		this.postfix = postfix;
+	}
+
+	/**
+	 * Parse the text between the braces of a reference.
+	 * 
+	 * @param expression
+	 *            The reference without the surrounding braces.
+	 * @throws ParseException
+	 *             Thrown if a concat reference isn't correctly formatted.
+	 */
+	static PropertyReference parse(String expression) throws ParseException {
+		if (expression.startsWith(FOREACH_ARRAY)) {
+			return new PropertyReference(Kind.ARRAY, expression.substring(FOREACH_ARRAY.length()),
+					expression);
+		} else if (expression.startsWith(FOREACH_CONCAT)) {
+			Matcher matcher = CONCAT_PATTERN.matcher(expression.substring(FOREACH_CONCAT.length()));
+			if (!matcher.matches()) {
+				throw new ParseException(String.format(
+						"reference %s is not in the format concat:key:prefix[prefix%%postfix]postfix",
+						expression), 0);
+			}
+
+			return new PropertyReference(Kind.CONCAT, matcher.group(1), expression,
+					matcher.group(2), matcher.group(3), matcher.group(4), matcher.group(5));
+		} else if (expression.equals(FOREACH_COUNT)) {
+			return new PropertyReference(Kind.COUNT, null, expression);
+		} else {
+			return new PropertyReference(Kind.PROPERTY, expression, expression);
+		}
+	}
+
+	Kind getKind() {
+		return this.kind;
+	}
+
+	String getKey() {
+		return this.key;
+	}
+
+	/**
+	 * @return The reference as written between the braces, e.g. array:name.
+	 */
+	String getExpression() {
+		return this.expression;
+	}
+
+	String getPrefix() {
+		return this.prefix;
+	}
+
+	String getElementPrefix() {
+		return this.elementPrefix;
+	}
+
+	String getElementPostfix() {
+		return this.elementPostfix;
+	}
+
+	String getPostfix() {
+		return this.postfix;
+	}
+}
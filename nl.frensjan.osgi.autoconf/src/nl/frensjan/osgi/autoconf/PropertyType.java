@@ -0,0 +1,154 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package nl.frensjan.osgi.autoconf;
+
+import java.lang.reflect.Array;
+import java.util.Collection;
+import java.util.Iterator;
+
+/**
+ * The type a rendered value is coerced to, as specified by key:Type=value
+ * (e.g. port:Integer={port}) or key:Type[]=value for an array of the type.
+ * The types are the scalar types supported by configuration admin.
+ */
+enum PropertyType {
+	STRING(String.class), INTEGER(Integer.class), LONG(Long.class), FLOAT(Float.class),
+	DOUBLE(Double.class), BYTE(Byte.class), SHORT(Short.class), CHARACTER(Character.class),
+	BOOLEAN(Boolean.class);
+
+	private final Class<?> type;
+
+	private PropertyType(Class<?> type) {
+		this.type = type;
+	}
+
+	/**
+	 * @return The type with the given (simple) class name, e.g. Integer, or
+	 *         null if there is no such type.
+	 */
+	static PropertyType forName(String name) {
+		for (PropertyType type : values()) {
+			if (type.type.getSimpleName().equals(name)) {
+				return type;
+			}
+		}
+
+		return null;
+	}
+
+	/**
+	 * Convert the given value to this type, numbers are converted as numbers,
+	 * other values are parsed from their string representation.
+	 * 
+	 * @throws IllegalArgumentException
+	 *             Thrown if the value can't be converted.
+	 */
+	Object coerce(Object value) {
+		if (value == null || this.type.isInstance(value)) {
+			return value;
+		}
+
+		if (value instanceof Number) {
+			Number number = (Number) value;
+			switch (this) {
+			case INTEGER:
+				return number.intValue();
+			case LONG:
+				return number.longValue();
+			case FLOAT:
+				return number.floatValue();
+			case DOUBLE:
+				return number.doubleValue();
+			case BYTE:
+				return number.byteValue();
+			case SHORT:
+				return number.shortValue();
+			default:
+				break;
+			}
+		}
+
+		String string = String.valueOf(value).trim();
+		try {
+			switch (this) {
+			case STRING:
+				return String.valueOf(value);
+			case INTEGER:
+				return Integer.valueOf(string);
+			case LONG:
+				return Long.valueOf(string);
+			case FLOAT:
+				return Float.valueOf(string);
+			case DOUBLE:
+				return Double.valueOf(string);
+			case BYTE:
+				return Byte.valueOf(string);
+			case SHORT:
+				return Short.valueOf(string);
+			case CHARACTER:
+				if (string.length() == 1) {
+					return string.charAt(0);
+				}
+				break;
+			case BOOLEAN:
+				if (string.equalsIgnoreCase("true") || string.equalsIgnoreCase("false")) {
+					return Boolean.valueOf(string);
+				}
+				break;
+			}
+		} catch (NumberFormatException e) {
+			// reported below
+		}
+
+		throw new IllegalArgumentException(String.format("Can't convert %s to %s", value,
+				this.type.getSimpleName()));
+	}
+
+	/**
+	 * Convert the given value to an array of this type. The elements of an
+	 * array or collection are converted one by one, any other value is
+	 * converted into a single element array.
+	 */
+	Object coerceArray(Object value) {
+		if (value == null) {
+			return null;
+		}
+
+		Object array;
+		if (value.getClass().isArray()) {
+			int length = Array.getLength(value);
+			array = Array.newInstance(this.type, length);
+			for (int i = 0; i < length; i++) {
+				Array.set(array, i, this.coerce(Array.get(value, i)));
+			}
+		} else if (value instanceof Collection) {
+			Collection<?> collection = (Collection<?>) value;
+			array = Array.newInstance(this.type, collection.size());
+			Iterator<?> iterator = collection.iterator();
+			for (int i = 0; iterator.hasNext(); i++) {
+				Array.set(array, i, this.coerce(iterator.next()));
+			}
+		} else {
+			array = Array.newInstance(this.type, 1);
+			Array.set(array, 0, this.coerce(value));
+		}
+
+		return array;
+	}
+}
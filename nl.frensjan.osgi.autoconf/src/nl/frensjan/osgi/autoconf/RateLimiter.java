@@ -0,0 +1,101 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package nl.frensjan.osgi.autoconf;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A token bucket limiting the rate at which configuration changes are
+ * applied: tokens are added at the configured rate up to the configured burst,
+ * every change takes one. A limiter can have a parent (e.g. the limit of all
+ * rules together), a change then takes a token from both.
+ */
+final class RateLimiter {
+	private final RateLimiter parent;
+
+	// tokens per nanosecond, 0 or less for no limit
+	private double rate;
+	private double burst;
+
+	private double tokens;
+	private long refillTime = System.nanoTime();
+
+	/**
+	 * @param rate
+	 *            The number of changes per second, 0 for no limit.
+	 * @param burst
+	 *            The number of changes which can be applied at once after a
+	 *            quiet period.
+	 * @param parent
+	 *            The limiter to take tokens from as well, may be null.
+	 */
+	RateLimiter(double rate, int burst, RateLimiter parent) {
+		this.parent = parent;
+		this.configure(rate, burst);
+	}
+
+	/**
+	 * Change the rate and burst, the bucket is filled to the new burst.
+	 */
+	synchronized void configure(double rate, int burst) {
+		this.rate = rate / TimeUnit.SECONDS.toNanos(1);
+		this.burst = Math.max(1, burst);
+		this.tokens = this.burst;
+		this.refillTime = System.nanoTime();
+	}
+
+	/**
+	 * @return The time in nanoseconds until a token is available (in this
+	 *         limiter and its parent), 0 if one is available right now.
+	 */
+	synchronized long delay() {
+		long delay = 0;
+
+		if (this.rate > 0) {
+			this.refill();
+			if (this.tokens < 1) {
+				delay = (long) Math.ceil((1 - this.tokens) / this.rate);
+			}
+		}
+
+		return this.parent == null ? delay : Math.max(delay, this.parent.delay());
+	}
+
+	/**
+	 * Take a token from this limiter and its parent. The token is taken even
+	 * if none is available (e.g. when another rule took the last token of the
+	 * parent in the meantime), delaying the next token instead.
+	 */
+	synchronized void take() {
+		if (this.rate > 0) {
+			this.refill();
+			this.tokens -= 1;
+		}
+
+		if (this.parent != null) {
+			this.parent.take();
+		}
+	}
+
+	private void refill() {
+		long now = System.nanoTime();
+		this.tokens = Math.min(this.burst, this.tokens + (now - this.refillTime) * this.rate);
+		this.refillTime = now;
+	}
+}
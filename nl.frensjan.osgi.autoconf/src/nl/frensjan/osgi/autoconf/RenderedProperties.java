@@ -0,0 +1,161 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package nl.frensjan.osgi.autoconf;
+
+import java.util.Arrays;
+import java.util.Dictionary;
+import java.util.Enumeration;
+import java.util.NoSuchElementException;
+
+/**
+ * The properties rendered from a {@link ConfigurationTemplate}. Unlike
+ * {@link java.util.Properties} (a synchronized hash table) the properties are
+ * kept in presized arrays without locking, as they are only handed from the
+ * template to configuration admin (which copies them). Lookups are linear,
+ * which is fine for the handful of properties of a configuration.
+ */
+final class RenderedProperties extends Dictionary<String, Object> {
+	private String[] keys;
+	private Object[] values;
+	private int size = 0;
+
+	RenderedProperties(int capacity) {
+		this.keys = new String[Math.max(1, capacity)];
+		this.values = new Object[this.keys.length];
+	}
+
+	@Override
+	public int size() {
+		return this.size;
+	}
+
+	@Override
+	public boolean isEmpty() {
+		return this.size == 0;
+	}
+
+	@Override
+	public Object get(Object key) {
+		int index = this.indexOf(key);
+		return index == -1 ? null : this.values[index];
+	}
+
+	@Override
+	public Object put(String key, Object value) {
+		if (key == null || value == null) {
+			throw new NullPointerException();
+		}
+
+		int index = this.indexOf(key);
+		if (index != -1) {
+			Object previous = this.values[index];
+			this.values[index] = value;
+			return previous;
+		}
+
+		if (this.size == this.keys.length) {
+			this.keys = Arrays.copyOf(this.keys, this.size * 2);
+			this.values = Arrays.copyOf(this.values, this.size * 2);
+		}
+
+		this.keys[this.size] = key;
+		this.values[this.size] = value;
+		this.size++;
+		return null;
+	}
+
+	@Override
+	public Object remove(Object key) {
+		int index = this.indexOf(key);
+		if (index == -1) {
+			return null;
+		}
+
+		Object previous = this.values[index];
+
+		this.size--;
+		System.arraycopy(this.keys, index + 1, this.keys, index, this.size - index);
+		System.arraycopy(this.values, index + 1, this.values, index, this.size - index);
+		this.keys[this.size] = null;
+		this.values[this.size] = null;
+
+		return previous;
+	}
+
+	@Override
+	public Enumeration<String> keys() {
+		return new ArrayEnumeration<>(this.keys, this.size);
+	}
+
+	@Override
+	public Enumeration<Object> elements() {
+		return new ArrayEnumeration<>(this.values, this.size);
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder string = new StringBuilder("{");
+		for (int i = 0; i < this.size; i++) {
+			if (i > 0) {
+				string.append(", ");
+			}
+
+			Object value = this.values[i];
+			string.append(this.keys[i]).append('=').append(
+					value instanceof Object[] ? Arrays.deepToString((Object[]) value) : value);
+		}
+
+		return string.append('}').toString();
+	}
+
+	private int indexOf(Object key) {
+		for (int i = 0; i < this.size; i++) {
+			if (this.keys[i].equals(key)) {
+				return i;
+			}
+		}
+
+		return -1;
+	}
+
+	private static final class ArrayEnumeration<T> implements Enumeration<T> {
+		private final T[] elements;
+		private final int size;
+		private int index = 0;
+
+		ArrayEnumeration(T[] elements, int size) {
+			this.elements = elements;
+			this.size = size;
+		}
+
+		@Override
+		public boolean hasMoreElements() {
+			return this.index < this.size;
+		}
+
+		@Override
+		public T nextElement() {
+			if (this.index >= this.size) {
+				throw new NoSuchElementException();
+			}
+
+			return this.elements[this.index++];
+		}
+	}
+}
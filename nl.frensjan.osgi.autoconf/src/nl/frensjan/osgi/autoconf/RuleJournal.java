@@ -0,0 +1,151 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package nl.frensjan.osgi.autoconf;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Properties;
+
+import org.osgi.framework.BundleContext;
+
+/**
+ * The journal of the configurations managed by a rule, persisted in the data
+ * area of the bundle: per source (the service identity, partition or the
+ * singleton) the pid of the configuration and the fingerprint of the
+ * properties last pushed to it. When the rule is activated again (e.g. after
+ * a restart of the framework) the existing configurations are taken over
+ * with the fingerprints from the journal, so that unchanged configurations
+ * aren't written again.
+ */
+final class RuleJournal {
+	/**
+	 * A configuration in the journal.
+	 */
+	static final class Record {
+		final String pid;
+		final long fingerprint;
+
+		Record(String pid, long fingerprint) {
+			this.pid = pid;
+			this.fingerprint = fingerprint;
+		}
+	}
+
+	// the key of the singleton configuration (which has no source)
+	private static final String SINGLETON_KEY = "";
+
+	private final String ruleId;
+	private final File file;
+
+	private RuleJournal(String ruleId, File file) {
+		this.ruleId = ruleId;
+		this.file = file;
+	}
+
+	/**
+	 * @return The journal of the given rule, or null if the rule has no id or
+	 *         the framework has no file system support.
+	 */
+	static RuleJournal forRule(BundleContext context, String ruleId) {
+		if (ruleId == null) {
+			return null;
+		}
+
+		File file = context.getDataFile("journal/" + ruleId.replaceAll("[^\\w.-]", "_"));
+		return file == null ? null : new RuleJournal(ruleId, file);
+	}
+
+	/**
+	 * Read the journal.
+	 * 
+	 * @return The configurations by the source they were created for (null
+	 *         for the singleton configuration), empty if there is no journal.
+	 */
+	Map<String, Record> read() throws IOException {
+		Map<String, Record> records = new HashMap<>();
+		if (!this.file.isFile()) {
+			return records;
+		}
+
+		Properties journal = new Properties();
+		try (InputStream in = new FileInputStream(this.file)) {
+			journal.load(in);
+		}
+
+		for (String key : journal.stringPropertyNames()) {
+			String[] pidFingerprint = journal.getProperty(key).split(" ", 2);
+			if (pidFingerprint.length != 2) {
+				throw new IOException("Corrupt journal entry for " + key);
+			}
+
+			try {
+				records.put(SINGLETON_KEY.equals(key) ? null : key, new Record(pidFingerprint[0],
+						Long.parseLong(pidFingerprint[1])));
+			} catch (NumberFormatException e) {
+				throw new IOException("Corrupt journal entry for " + key, e);
+			}
+		}
+
+		return records;
+	}
+
+	/**
+	 * Replace the journal with the given configurations, by the source they
+	 * were created for (null for the singleton configuration). The
+	 * configurations which were never updated are left out.
+	 */
+	void write(Map<String, ManagedConfiguration> configurations) throws IOException {
+		Properties journal = new Properties();
+		for (Entry<String, ManagedConfiguration> entry : configurations.entrySet()) {
+			ManagedConfiguration configuration = entry.getValue();
+			if (configuration.isUpdated()) {
+				String key = entry.getKey() == null ? SINGLETON_KEY : entry.getKey();
+				journal.setProperty(key, configuration.getPid() + " "
+						+ configuration.getFingerprint());
+			}
+		}
+
+		// write to a temporary file first, so that a failure leaves the
+		// previous journal intact
+		File directory = this.file.getParentFile();
+		if (!directory.isDirectory() && !directory.mkdirs()) {
+			throw new IOException("Couldn't create " + directory);
+		}
+
+		File temp = new File(directory, this.file.getName() + ".tmp");
+		try (OutputStream out = new FileOutputStream(temp)) {
+			journal.store(out, "configurations of auto configuration rule " + this.ruleId);
+		}
+
+		if (!temp.renameTo(this.file) && !(this.file.delete() && temp.renameTo(this.file))) {
+			throw new IOException("Couldn't replace " + this.file);
+		}
+	}
+
+	void delete() {
+		this.file.delete();
+	}
+}
@@ -0,0 +1,341 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package nl.frensjan.osgi.autoconf;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.Filter;
+import org.osgi.framework.InvalidSyntaxException;
+import org.osgi.framework.ServiceEvent;
+import org.osgi.framework.ServiceListener;
+import org.osgi.framework.ServiceReference;
+
+import aQute.bnd.annotation.component.Activate;
+import aQute.bnd.annotation.component.Component;
+import aQute.bnd.annotation.component.Deactivate;
+
+/**
+ * Listens for service events once on behalf of all auto configuration rules
+ * and dispatches them to the rules whose filter matches the service. The rules
+ * are indexed by an equality clause of their filter (preferably on
+ * objectClass), so only the candidate rules for a service are evaluated,
+ * instead of the framework evaluating the filter of every rule for every
+ * service event in the container.
+ * 
+ * The dispatcher keeps track of which rules a service matched, so that
+ * MODIFIED_ENDMATCH is dispatched like the framework would for a listener
+ * with the rule's filter.
+ */
+@Component(provide = ServiceEventDispatcher.class, immediate = true)
+public class ServiceEventDispatcher implements ServiceListener {
+	private static final String OBJECTCLASS = "objectclass";
+
+	private static final class Registration {
+		final ServiceListener listener;
+		final Filter filter;
+
+		// the equality clause the registration is indexed by (null if none)
+		final String attribute;
+		final String value;
+
+		Registration(ServiceListener listener, Filter filter, String[] clause) {
+			this.listener = listener;
+			this.filter = filter;
+			this.attribute = clause == null ? null : clause[0];
+			this.value = clause == null ? null : clause[1];
+		}
+	}
+
+	private BundleContext context;
+
+	// the registrations by attribute and value of their equality clause, or
+	// unindexed if their filter has no (usable) equality clause
+	private final Map<ServiceListener, Registration> registrations = new HashMap<>();
+	private final Map<String, Map<String, List<Registration>>> index = new HashMap<>();
+	private final List<Registration> unindexed = new ArrayList<>();
+
+	// per service the registrations its last event was dispatched to
+	private final Map<ServiceReference, Set<Registration>> matched = new HashMap<>();
+
+	@Activate
+	public void activate(BundleContext context) {
+		this.context = context;
+		context.addServiceListener(this);
+	}
+
+	@Deactivate
+	public synchronized void deactivate(BundleContext context) {
+		context.removeServiceListener(this);
+
+		this.registrations.clear();
+		this.index.clear();
+		this.unindexed.clear();
+		this.matched.clear();
+	}
+
+	/**
+	 * Start dispatching the events of services matching the given filter to
+	 * the given listener.
+	 * 
+	 * @return The services currently matching the filter.
+	 */
+	synchronized Set<ServiceReference> addListener(ServiceListener listener, String filter)
+			throws InvalidSyntaxException {
+		Registration registration = new Registration(listener, this.context.createFilter(filter),
+				indexClause(filter));
+
+		this.removeListener(listener);
+		this.registrations.put(listener, registration);
+
+		if (registration.attribute == null) {
+			this.unindexed.add(registration);
+		} else {
+			Map<String, List<Registration>> values = this.index.get(registration.attribute);
+			if (values == null) {
+				values = new HashMap<>();
+				this.index.put(registration.attribute, values);
+			}
+
+			List<Registration> indexed = values.get(registration.value);
+			if (indexed == null) {
+				indexed = new ArrayList<>(1);
+				values.put(registration.value, indexed);
+			}
+
+			indexed.add(registration);
+		}
+
+		// the current matches are needed to dispatch MODIFIED_ENDMATCH
+		ServiceReference[] refs = this.context.getAllServiceReferences(null, filter);
+		if (refs == null) {
+			return new HashSet<>(0);
+		}
+
+		for (ServiceReference ref : refs) {
+			this.matchedRegistrations(ref, true).add(registration);
+		}
+
+		return new HashSet<>(Arrays.asList(refs));
+	}
+
+	/**
+	 * Stop dispatching service events to the given listener.
+	 */
+	synchronized void removeListener(ServiceListener listener) {
+		Registration registration = this.registrations.remove(listener);
+		if (registration == null) {
+			return;
+		}
+
+		if (registration.attribute == null) {
+			this.unindexed.remove(registration);
+		} else {
+			Map<String, List<Registration>> values = this.index.get(registration.attribute);
+			List<Registration> indexed = values.get(registration.value);
+			indexed.remove(registration);
+
+			if (indexed.isEmpty()) {
+				values.remove(registration.value);
+				if (values.isEmpty()) {
+					this.index.remove(registration.attribute);
+				}
+			}
+		}
+
+		for (Set<Registration> registrations : this.matched.values()) {
+			registrations.remove(registration);
+		}
+	}
+
+	@Override
+	public void serviceChanged(ServiceEvent event) {
+		ServiceReference ref = event.getServiceReference();
+
+		List<ServiceListener> listeners = new ArrayList<>(2);
+		List<ServiceEvent> events = new ArrayList<>(2);
+
+		synchronized (this) {
+			Set<Registration> previouslyMatched = this.matchedRegistrations(ref, false);
+
+			// candidates are the rules indexed under one of the service's
+			// values, and the rules it matched before (for MODIFIED_ENDMATCH)
+			Set<Registration> candidates = new HashSet<>(previouslyMatched);
+			candidates.addAll(this.unindexed);
+			for (Entry<String, Map<String, List<Registration>>> attribute : this.index.entrySet()) {
+				this.addCandidates(candidates, attribute.getValue(),
+						ref.getProperty(attribute.getKey()));
+			}
+
+			Set<Registration> nowMatched = new HashSet<>();
+			for (Registration candidate : candidates) {
+				int type = event.getType();
+
+				if (candidate.filter.match(ref)) {
+					nowMatched.add(candidate);
+				} else if (type == ServiceEvent.MODIFIED && previouslyMatched.contains(candidate)) {
+					type = ServiceEvent.MODIFIED_ENDMATCH;
+				} else {
+					continue;
+				}
+
+				listeners.add(candidate.listener);
+				events.add(type == event.getType() ? event : new ServiceEvent(type, ref));
+			}
+
+			if (nowMatched.isEmpty() || event.getType() == ServiceEvent.UNREGISTERING) {
+				this.matched.remove(ref);
+			} else {
+				this.matched.put(ref, nowMatched);
+			}
+		}
+
+		for (int i = 0; i < listeners.size(); i++) {
+			listeners.get(i).serviceChanged(events.get(i));
+		}
+	}
+
+	private Set<Registration> matchedRegistrations(ServiceReference ref, boolean create) {
+		Set<Registration> registrations = this.matched.get(ref);
+
+		if (registrations == null) {
+			if (!create) {
+				return Collections.emptySet();
+			}
+
+			registrations = new HashSet<>();
+			this.matched.put(ref, registrations);
+		}
+
+		return registrations;
+	}
+
+	// add the registrations indexed under (one of) the given property value(s)
+	private void addCandidates(Set<Registration> candidates,
+			Map<String, List<Registration>> values, Object value) {
+		if (value == null) {
+			return;
+		} else if (value instanceof String) {
+			List<Registration> indexed = values.get(value);
+			if (indexed != null) {
+				candidates.addAll(indexed);
+			}
+		} else if (value instanceof String[]) {
+			for (String element : (String[]) value) {
+				this.addCandidates(candidates, values, element);
+			}
+		} else if (value instanceof Collection) {
+			for (Object element : (Collection<?>) value) {
+				this.addCandidates(candidates, values, element);
+			}
+		} else {
+			// the framework compares other types by their own equality (e.g.
+			// numerically), so all registrations on the attribute are
+			// candidates
+			for (List<Registration> indexed : values.values()) {
+				candidates.addAll(indexed);
+			}
+		}
+	}
+
+	/**
+	 * Find the equality clause to index a filter by: the filter itself if it
+	 * is one, or one of the operands if it is a conjunction, preferably on
+	 * objectClass.
+	 * 
+	 * @return The attribute (in lower case) and value of the clause, or null
+	 *         if there is none.
+	 */
+	static String[] indexClause(String filter) {
+		filter = filter.trim();
+
+		String[] clause = equalityClause(filter);
+		if (clause != null || !filter.startsWith("(&")) {
+			return clause;
+		}
+
+		// find the operands of the conjunction
+		int depth = 0;
+		int start = -1;
+		for (int i = 2; i < filter.length() - 1; i++) {
+			char c = filter.charAt(i);
+
+			if (c == '\\') {
+				i++;
+			} else if (c == '(') {
+				if (depth++ == 0) {
+					start = i;
+				}
+			} else if (c == ')' && --depth == 0) {
+				String[] operand = equalityClause(filter.substring(start, i + 1));
+				if (operand != null && (clause == null || operand[0].equals(OBJECTCLASS))) {
+					clause = operand;
+				}
+			}
+		}
+
+		return clause;
+	}
+
+	// parse (attr=value) without wildcards, null if it's something else
+	private static String[] equalityClause(String filter) {
+		if (!filter.startsWith("(") || !filter.endsWith(")")) {
+			return null;
+		}
+
+		int eq = filter.indexOf('=');
+		if (eq < 2) {
+			return null;
+		}
+
+		String attribute = filter.substring(1, eq);
+		if (attribute.indexOf('(') != -1 || attribute.indexOf('~') != -1
+				|| attribute.indexOf('<') != -1 || attribute.indexOf('>') != -1
+				|| attribute.startsWith("&") || attribute.startsWith("|")
+				|| attribute.startsWith("!")) {
+			return null;
+		}
+
+		StringBuilder value = new StringBuilder();
+		for (int i = eq + 1; i < filter.length() - 1; i++) {
+			char c = filter.charAt(i);
+
+			if (c == '\\' && i + 1 < filter.length() - 1) {
+				value.append(filter.charAt(++i));
+			} else if (c == '*' || c == '(' || c == ')') {
+				return null;
+			} else {
+				value.append(c);
+			}
+		}
+
+		return new String[] { attribute.trim().toLowerCase(Locale.ENGLISH), value.toString() };
+	}
+}
@@ -0,0 +1,301 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package nl.frensjan.osgi.autoconf;
+
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Collects the configuration changes caused by service events and folds them
+ * per target (a service reference, or the singleton configuration), so that a
+ * burst of service events results in a single write per configuration. The
+ * pending changes are flushed once no events arrived for the configured
+ * delay, but no later than the configured maximum latency after the first
+ * pending change. Recording a change never waits for configuration admin.
+ * 
+ * The changes are applied on a pool of threads of the queue's own. Changes on
+ * different targets are applied in parallel, changes on the same target are
+ * applied one at a time and in order: while a change is being applied, the
+ * next change on the target is kept pending (and folded).
+ * 
+ * The changes are handed to the pool no faster than the rate limiter allows,
+ * the changes held back stay pending (and keep being folded). As there is at
+ * most one pending change per target, the queue is bounded by the number of
+ * targets, however long the burst of service events.
+ */
+final class UpdateQueue {
+	enum Operation {
+		CREATE, UPDATE, DELETE;
+
+		/**
+		 * Fold the next operation on a target into this pending one.
+		 * 
+		 * @return The combined operation, or null if they cancel each other
+		 *         out (a create followed by a delete).
+		 */
+		Operation fold(Operation next) {
+			switch (this) {
+			case CREATE:
+				return next == DELETE ? null : CREATE;
+			case UPDATE:
+				return next == DELETE ? DELETE : UPDATE;
+			default:
+				return next == CREATE ? UPDATE : DELETE;
+			}
+		}
+	}
+
+	/**
+	 * Applies the operations, invoked on the threads of the queue.
+	 */
+	interface Handler {
+		void apply(Object target, Operation operation);
+	}
+
+	private final long delay;
+	private final long maxLatency;
+
+	private final Handler handler;
+	private final RateLimiter limiter;
+	private final ScheduledThreadPoolExecutor executor;
+
+	// the pending operations per target, in order of arrival
+	private final Map<Object, Operation> pending = new LinkedHashMap<>();
+
+	// the targets of the operations being applied
+	private final Set<Object> inFlight = new HashSet<>();
+
+	// operations added after closing are ignored
+	private boolean closed = false;
+
+	// timing of the pending operations (in nanos)
+	private boolean flushScheduled = false;
+	private long firstPendingTime;
+	private long lastPendingTime;
+
+	private final Runnable flushTask = new Runnable() {
+		@Override
+		public void run() {
+			UpdateQueue.this.flush();
+		}
+	};
+
+	private final class Application implements Runnable {
+		private final Object target;
+		private final Operation operation;
+
+		Application(Object target, Operation operation) {
+			this.target = target;
+			this.operation = operation;
+		}
+
+		@Override
+		public void run() {
+			try {
+				UpdateQueue.this.handler.apply(this.target, this.operation);
+			} finally {
+				UpdateQueue.this.applied(this.target);
+			}
+		}
+	}
+
+	/**
+	 * @param name
+	 *            The name of the threads applying the operations.
+	 * @param delay
+	 *            The quiet time in milliseconds after which pending operations
+	 *            are flushed, 0 to flush them as soon as possible.
+	 * @param maxLatency
+	 *            The maximum time in milliseconds an operation is kept
+	 *            pending, or 0 for no maximum.
+	 * @param parallelism
+	 *            The number of threads applying operations.
+	 * @param limiter
+	 *            Limits the rate at which operations are applied.
+	 * @param handler
+	 *            Applies the operations.
+	 */
+	UpdateQueue(final String name, long delay, long maxLatency, int parallelism,
+			RateLimiter limiter, Handler handler) {
+		this.delay = TimeUnit.MILLISECONDS.toNanos(delay);
+		this.maxLatency = TimeUnit.MILLISECONDS.toNanos(Math.max(0, maxLatency));
+		this.limiter = limiter;
+		this.handler = handler;
+		this.executor = new ScheduledThreadPoolExecutor(Math.max(1, parallelism),
+				new ThreadFactory() {
+					private final AtomicInteger count = new AtomicInteger();
+
+					@Override
+					public Thread newThread(Runnable r) {
+						Thread thread = new Thread(r, name + " #" + this.count.incrementAndGet());
+						thread.setDaemon(true);
+						return thread;
+					}
+				});
+		this.executor.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+	}
+
+	/**
+	 * Add an operation on the given target, folding it into the operation
+	 * already pending for it (if any).
+	 */
+	synchronized void add(Object target, Operation operation) {
+		if (this.closed) {
+			return;
+		}
+
+		Operation pendingOperation = this.pending.get(target);
+		Operation folded = pendingOperation == null ? operation : pendingOperation
+				.fold(operation);
+
+		if (folded == null) {
+			this.pending.remove(target);
+		} else {
+			this.pending.put(target, folded);
+		}
+
+		this.lastPendingTime = System.nanoTime();
+		if (!this.flushScheduled) {
+			this.flushScheduled = true;
+			this.firstPendingTime = this.lastPendingTime;
+			this.executor.schedule(this.flushTask, this.delay, TimeUnit.NANOSECONDS);
+		}
+	}
+
+	/**
+	 * Add an operation on the given target once the given delay (in
+	 * milliseconds) has passed, unless the queue is closed by then.
+	 */
+	void addLater(final Object target, final Operation operation, long delay) {
+		if (delay <= 0) {
+			this.add(target, operation);
+			return;
+		}
+
+		try {
+			this.executor.schedule(new Runnable() {
+				@Override
+				public void run() {
+					UpdateQueue.this.add(target, operation);
+				}
+			}, delay, TimeUnit.MILLISECONDS);
+		} catch (RejectedExecutionException e) {
+			// the queue is closed
+		}
+	}
+
+	/**
+	 * @return The number of targets with an operation pending.
+	 */
+	synchronized int size() {
+		return this.pending.size();
+	}
+
+	/**
+	 * Discard the pending operations and stop the threads, waiting for the
+	 * operations being applied (if any).
+	 * 
+	 * @param timeout
+	 *            The time in milliseconds to wait for the operations being
+	 *            applied.
+	 * @return Whether the threads stopped in time.
+	 */
+	boolean close(long timeout) {
+		synchronized (this) {
+			this.closed = true;
+			this.pending.clear();
+			this.executor.shutdown();
+		}
+
+		try {
+			return this.executor.awaitTermination(Math.max(0, timeout), TimeUnit.MILLISECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return false;
+		}
+	}
+
+	// dispatches the pending operations if the quiet time or the maximum
+	// latency is reached, if not the flush is rescheduled for when it is
+	private synchronized void flush() {
+		long now = System.nanoTime();
+		long due = this.lastPendingTime + this.delay;
+		if (this.maxLatency > 0 && this.firstPendingTime + this.maxLatency - due < 0) {
+			due = this.firstPendingTime + this.maxLatency;
+		}
+
+		if (now - due < 0) {
+			this.executor.schedule(this.flushTask, due - now, TimeUnit.NANOSECONDS);
+			return;
+		}
+
+		this.flushScheduled = false;
+		this.dispatch();
+	}
+
+	// hand the pending operations on targets which aren't in flight to the
+	// executor, as far as the rate limiter allows, if it doesn't the
+	// dispatch is continued when the next token is available
+	private void dispatch() {
+		Iterator<Entry<Object, Operation>> iterator = this.pending.entrySet().iterator();
+		while (iterator.hasNext()) {
+			Entry<Object, Operation> pendingOperation = iterator.next();
+			if (this.inFlight.contains(pendingOperation.getKey())) {
+				continue;
+			}
+
+			long wait = this.limiter.delay();
+			if (wait > 0) {
+				if (!this.flushScheduled) {
+					this.flushScheduled = true;
+					this.executor.schedule(this.flushTask, wait, TimeUnit.NANOSECONDS);
+				}
+				return;
+			}
+
+			this.limiter.take();
+
+			this.inFlight.add(pendingOperation.getKey());
+			iterator.remove();
+			this.executor.execute(new Application(pendingOperation.getKey(),
+					pendingOperation.getValue()));
+		}
+	}
+
+	// an operation has been applied, an operation on the same target which
+	// was held back while it was in flight is dispatched right away (unless
+	// it is to be flushed later on anyway)
+	private synchronized void applied(Object target) {
+		this.inFlight.remove(target);
+
+		if (!this.closed && !this.flushScheduled && this.pending.containsKey(target)) {
+			this.dispatch();
+		}
+	}
+}
@@ -0,0 +1,53 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package nl.frensjan.osgi.autoconf;
+
+import java.util.Map;
+
+import aQute.bnd.annotation.component.Activate;
+import aQute.bnd.annotation.component.Component;
+import aQute.bnd.annotation.component.Modified;
+import aQute.bnd.annotation.metatype.Configurable;
+
+/**
+ * The limit on the rate at which the auto configuration rules together apply
+ * changes to their managed configurations, on top of the limit of each rule.
+ * The limit is modified in place, so that the rules referencing it aren't
+ * reactivated (which would delete their configurations).
+ */
+@Component(provide = WriteLimiter.class, immediate = true, designate = WriteLimiterConfig.class)
+public class WriteLimiter {
+	private final RateLimiter limiter = new RateLimiter(0, 1, null);
+
+	@Activate
+	public void activate(Map<String, Object> props) {
+		this.modified(props);
+	}
+
+	@Modified
+	public void modified(Map<String, Object> props) {
+		WriteLimiterConfig config = Configurable.createConfigurable(WriteLimiterConfig.class,
+				props);
+		this.limiter.configure(config.rate(), config.burst());
+	}
+
+	RateLimiter getLimiter() {
+		return this.limiter;
+	}
+}
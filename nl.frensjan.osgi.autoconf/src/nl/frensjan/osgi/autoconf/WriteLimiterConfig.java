@@ -0,0 +1,35 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package nl.frensjan.osgi.autoconf;
+
+import aQute.bnd.annotation.metatype.Meta.AD;
+import aQute.bnd.annotation.metatype.Meta.OCD;
+
+@OCD(description = "Auto Configuration Write Limit")
+public interface WriteLimiterConfig {
+	@AD(deflt = "0", required = false, description = "The maximum number of"
+			+ " changes per second applied to the managed configurations of all"
+			+ " auto configuration rules together, 0 for no limit.")
+	double rate();
+
+	@AD(deflt = "100", required = false, description = "The number of changes"
+			+ " which can be applied at once after a quiet period, before the"
+			+ " rate limit kicks in.")
+	int burst();
+}
@@ -0,0 +1,118 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package nl.frensjan.osgi.autoconf.metrics;
+
+/**
+ * A snapshot of a latency histogram. The durations are counted in buckets by
+ * powers of two: bucket i counts the durations of at least 2^i and less than
+ * 2^(i+1) nanoseconds (bucket 0 also counts the durations of 0 nanoseconds).
+ */
+public final class Latency {
+	private final long count;
+	private final long totalNanos;
+	private final long maxNanos;
+	private final long[] buckets;
+
+	public Latency(long count, long totalNanos, long maxNanos, long[] buckets) {
+		this.count = count;
+		this.totalNanos = totalNanos;
+		this.maxNanos = maxNanos;
+		this.buckets = buckets.clone();
+	}
+
+	/**
+	 * @return The number of durations recorded.
+	 */
+	public long getCount() {
+		return this.count;
+	}
+
+	/**
+	 * @return The sum of the durations recorded.
+	 */
+	public long getTotalNanos() {
+		return this.totalNanos;
+	}
+
+	/**
+	 * @return The longest duration recorded.
+	 */
+	public long getMaxNanos() {
+		return this.maxNanos;
+	}
+
+	/**
+	 * @return The average duration recorded, 0 if none were.
+	 */
+	public long getMeanNanos() {
+		return this.count == 0 ? 0 : this.totalNanos / this.count;
+	}
+
+	/**
+	 * @return The number of durations recorded per bucket.
+	 */
+	public long[] getBuckets() {
+		return this.buckets.clone();
+	}
+
+	/**
+	 * @return The upper bound of the bucket in which the median duration
+	 *         falls.
+	 */
+	public long getMedianNanos() {
+		return this.getPercentileNanos(50);
+	}
+
+	/**
+	 * @return The upper bound of the bucket in which the 99th percentile
+	 *         duration falls.
+	 */
+	public long get99thPercentileNanos() {
+		return this.getPercentileNanos(99);
+	}
+
+	/**
+	 * @param percentile
+	 *            The percentile, between 0 and 100.
+	 * @return The upper bound of the bucket in which the given percentile
+	 *         falls (capped by the longest duration recorded), 0 if no
+	 *         durations were recorded.
+	 */
+	public long getPercentileNanos(double percentile) {
+		long rank = (long) Math.ceil(this.count * percentile / 100);
+		long seen = 0;
+
+		for (int i = 0; i < this.buckets.length; i++) {
+			seen += this.buckets[i];
+			if (seen >= rank && seen > 0) {
+				long upper = i >= 62 ? Long.MAX_VALUE : (1L << (i + 1)) - 1;
+				return Math.min(upper, this.maxNanos);
+			}
+		}
+
+		return 0;
+	}
+
+	@Override
+	public String toString() {
+		return String.format("count=%d, mean=%dns, p50=%dns, p99=%dns, max=%dns", this.count,
+				this.getMeanNanos(), this.getMedianNanos(), this.get99thPercentileNanos(),
+				this.maxNanos);
+	}
+}
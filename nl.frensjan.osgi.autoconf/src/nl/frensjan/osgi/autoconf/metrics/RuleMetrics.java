@@ -0,0 +1,118 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package nl.frensjan.osgi.autoconf.metrics;
+
+/**
+ * The counters and latencies of an auto configuration rule. Every rule
+ * registers an instance as a service, with the (service) pid of the rule as
+ * the {@code autoconf.rule} service property. The values are live, taken at
+ * the moment they are queried.
+ */
+public interface RuleMetrics {
+	/**
+	 * @return The (service) pid of the rule.
+	 */
+	String getRuleId();
+
+	/**
+	 * @return The (factory) pid of the configurations managed by the rule.
+	 */
+	String getTargetPid();
+
+	/**
+	 * @return The number of REGISTERED events received for matching services.
+	 */
+	long getRegisteredEvents();
+
+	/**
+	 * @return The number of MODIFIED events received for matching services.
+	 */
+	long getModifiedEvents();
+
+	/**
+	 * @return The number of MODIFIED_ENDMATCH events received for services
+	 *         which no longer match.
+	 */
+	long getModifiedEndMatchEvents();
+
+	/**
+	 * @return The number of UNREGISTERING events received for matching
+	 *         services.
+	 */
+	long getUnregisteringEvents();
+
+	/**
+	 * @return The number of MODIFIED events ignored because none of the
+	 *         service properties referenced by the rule changed.
+	 */
+	long getUnchangedEvents();
+
+	/**
+	 * @return The number of configurations created.
+	 */
+	long getCreatedConfigurations();
+
+	/**
+	 * @return The number of configurations updated.
+	 */
+	long getUpdatedConfigurations();
+
+	/**
+	 * @return The number of configurations deleted.
+	 */
+	long getDeletedConfigurations();
+
+	/**
+	 * @return The number of updates skipped because the properties didn't
+	 *         change.
+	 */
+	long getSkippedUpdates();
+
+	/**
+	 * @return The number of calls to configuration admin which failed.
+	 */
+	long getFailures();
+
+	/**
+	 * @return The number of times a managed configuration was changed or
+	 *         deleted by someone else.
+	 */
+	long getDriftedConfigurations();
+
+	/**
+	 * @return The number of operations waiting to be applied.
+	 */
+	int getQueueDepth();
+
+	/**
+	 * @return The number of configurations currently managed.
+	 */
+	int getManagedConfigurations();
+
+	/**
+	 * @return The time spent rendering the configuration properties.
+	 */
+	Latency getRenderLatency();
+
+	/**
+	 * @return The time spent in calls to configuration admin which created,
+	 *         updated or deleted a configuration.
+	 */
+	Latency getConfigAdminLatency();
+}
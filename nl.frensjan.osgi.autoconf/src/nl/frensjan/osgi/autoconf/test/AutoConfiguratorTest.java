@@ -20,18 +20,29 @@
 package nl.frensjan.osgi.autoconf.test;
 
 import java.io.IOException;
+import java.util.Dictionary;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
 import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import junit.framework.TestCase;
 import nl.frensjan.osgi.autoconf.AutoConfigurator;
 import nl.frensjan.osgi.autoconf.Multiplicity;
+import nl.frensjan.osgi.autoconf.metrics.RuleMetrics;
 
 import org.osgi.framework.BundleContext;
 import org.osgi.framework.FrameworkUtil;
 import org.osgi.framework.InvalidSyntaxException;
 import org.osgi.framework.ServiceReference;
+import org.osgi.framework.ServiceRegistration;
 import org.osgi.service.cm.Configuration;
 import org.osgi.service.cm.ConfigurationAdmin;
+import org.osgi.service.cm.ConfigurationEvent;
+import org.osgi.service.cm.ConfigurationListener;
 
 public class AutoConfiguratorTest extends TestCase {
 	private static Class<ConsumerImpl> CONSUMER_CLASS = ConsumerImpl.class;
@@ -88,6 +99,8 @@ public class AutoConfiguratorTest extends TestCase {
 		MatchedValidator matchedValidator = new MatchedValidator() {
 			@Override
 			public void validate(int producers, Object matched) {
+				// untyped arrays are arrays of strings
+				assertTrue(matched instanceof String[]);
 				assertEquals(producers, ((Object[]) matched).length);
 			}
 		};
@@ -133,10 +146,574 @@ public class AutoConfiguratorTest extends TestCase {
 		this.assertCorrectMatchedUpdates(matchedValidator);
 	}
 
+	public void testSingletonArrayOrder() throws Exception {
+		this.createAutoConfig(Multiplicity.SINGLETON,
+				new String[] { "matched={array:service.pid}" });
+
+		Configuration[] producerConfigs = new Configuration[3];
+
+		try {
+			// the producers are registered (and get their service id) in order
+			for (int i = 0; i < producerConfigs.length; i++) {
+				producerConfigs[i] = this.createProducerConfig();
+				Thread.sleep(100);
+			}
+
+			Object[] matched = (Object[]) this.getConsumerConfig().getProperties().get("matched");
+			assertEquals(producerConfigs.length, matched.length);
+			for (int i = 0; i < producerConfigs.length; i++) {
+				assertEquals(producerConfigs[i].getPid(), matched[i]);
+			}
+		} finally {
+			this.deleteAll(producerConfigs);
+		}
+	}
+
+	public void testSingletonAggregateLimit() throws Exception {
+		Properties properties = this.autoConfigProperties(Multiplicity.SINGLETON, new String[] {
+				"matched={array:service.pid}", "count={count}" });
+		properties.put("aggregateLimit", Integer.valueOf(2));
+		this.createAutoConfig(properties);
+
+		Configuration[] producerConfigs = new Configuration[3];
+
+		try {
+			for (int i = 0; i < producerConfigs.length; i++) {
+				producerConfigs[i] = this.createProducerConfig();
+				Thread.sleep(100);
+			}
+
+			// only the first services in aggregate order are aggregated
+			Dictionary<?, ?> props = this.getConsumerConfig().getProperties();
+			assertEquals(2, props.get("count"));
+			Object[] matched = (Object[]) props.get("matched");
+			assertEquals(2, matched.length);
+			assertEquals(producerConfigs[0].getPid(), matched[0]);
+			assertEquals(producerConfigs[1].getPid(), matched[1]);
+
+			// the next service moves up when one of them leaves
+			producerConfigs[0].delete();
+			producerConfigs[0] = null;
+			Thread.sleep(200);
+
+			props = this.getConsumerConfig().getProperties();
+			matched = (Object[]) props.get("matched");
+			assertEquals(2, matched.length);
+			assertEquals(producerConfigs[1].getPid(), matched[0]);
+			assertEquals(producerConfigs[2].getPid(), matched[1]);
+		} finally {
+			this.deleteAll(producerConfigs);
+		}
+	}
+
+	public void testAdjacentReferences() throws Exception {
+		this.createAutoConfig(Multiplicity.ONE_FOR_EACH,
+				new String[] { "matched={service.factoryPid}-{service.pid}" });
+
+		Configuration producerConfig = this.createProducerConfig();
+
+		try {
+			this.assertConsumerCount(1);
+
+			Configuration[] consumerConfigs = this.configAdmin.listConfigurations("(service.factoryPid=nl.frensjan.osgi.autoconf.test.ConsumerImpl)");
+			assertNotNull(consumerConfigs);
+			assertEquals(1, consumerConfigs.length);
+
+			Object matched = consumerConfigs[0].getProperties().get("matched");
+			assertEquals(PRODUCER_CLASS.getName() + "-" + producerConfig.getPid(), matched);
+		} finally {
+			this.deleteAll(new Configuration[] { producerConfig });
+		}
+	}
+
+	public void testUnchangedNotWritten() throws Exception {
+		Properties properties = this.autoConfigProperties(Multiplicity.ONE_FOR_EACH,
+				new String[] { "matched={name}" });
+		properties.put("filter", "(autoconf.test=producer)");
+		this.createAutoConfig(properties);
+
+		Properties producerProperties = this.producerProperties("name", "a");
+		ServiceRegistration producer = this.registerProducer(producerProperties);
+		UpdateCounter updates = new UpdateCounter();
+		ServiceRegistration listener = null;
+
+		try {
+			this.assertConsumerCount(1);
+			Thread.sleep(200);
+			listener = this.countUpdates(updates);
+
+			// a change of a property which isn't rendered isn't written
+			producerProperties.put("unrelated", "x");
+			producer.setProperties(producerProperties);
+			Thread.sleep(200);
+			assertEquals(0, updates.get());
+
+			// a change of a rendered property is
+			producerProperties.put("name", "b");
+			producer.setProperties(producerProperties);
+			Thread.sleep(200);
+			assertEquals(1, updates.get());
+			assertEquals("b", this.getConsumerConfig().getProperties().get("matched"));
+		} finally {
+			if (listener != null) {
+				listener.unregister();
+			}
+			producer.unregister();
+		}
+	}
+
+	public void testCoalescedCreateAndDelete() throws Exception {
+		Properties properties = this.autoConfigProperties(Multiplicity.ONE_FOR_EACH,
+				new String[] { "matched={name}" });
+		properties.put("filter", "(autoconf.test=producer)");
+		properties.put("coalesceDelay", Long.valueOf(500));
+		this.createAutoConfig(properties);
+
+		UpdateCounter updates = new UpdateCounter();
+		ServiceRegistration listener = this.countUpdates(updates);
+
+		try {
+			// a service which comes and goes within the delay is never written
+			this.registerProducer(this.producerProperties("name", "a")).unregister();
+
+			Thread.sleep(1000);
+			assertEquals(0, updates.get());
+			this.assertConsumerCount(0);
+		} finally {
+			listener.unregister();
+		}
+	}
+
+	public void testReactivationKeepsConfigurations() throws Exception {
+		Properties properties = this.autoConfigProperties(Multiplicity.ONE_FOR_EACH,
+				new String[] { "matched={service.pid}" });
+		this.createAutoConfig(properties);
+
+		Configuration[] producerConfigs = new Configuration[0];
+
+		try {
+			producerConfigs = this.createProducerConfigs(3);
+			this.assertConsumerCount(3);
+			Thread.sleep(200);
+			Set<String> pids = this.consumerPids(3);
+
+			// modifying the rule activates it again, it takes over its
+			// configurations
+			properties.put("comment", "modified");
+			this.autoconfig.update(properties);
+
+			Thread.sleep(500);
+			this.assertConsumerCount(3);
+			assertEquals(pids, this.consumerPids(3));
+		} finally {
+			this.deleteAll(producerConfigs);
+		}
+	}
+
+	public void testUnreferencedModificationsIgnored() throws Exception {
+		Properties properties = this.autoConfigProperties(Multiplicity.ONE_FOR_EACH,
+				new String[] { "matched={name}" });
+		properties.put("filter", "(autoconf.test=producer)");
+		this.createAutoConfig(properties);
+
+		Properties producerProperties = this.producerProperties("name", "a");
+		ServiceRegistration producer = this.registerProducer(producerProperties);
+
+		try {
+			this.assertConsumerCount(1);
+			Thread.sleep(200);
+
+			RuleMetrics metrics = this.getMetrics();
+			long renders = metrics.getRenderLatency().getCount();
+
+			// the modification isn't even rendered
+			producerProperties.put("unrelated", "x");
+			producer.setProperties(producerProperties);
+
+			Thread.sleep(200);
+			assertEquals(1, metrics.getUnchangedEvents());
+			assertEquals(renders, metrics.getRenderLatency().getCount());
+		} finally {
+			producer.unregister();
+		}
+	}
+
+	public void testPartitionedCounts() throws Exception {
+		Properties properties = this.autoConfigProperties(Multiplicity.PARTITIONED,
+				new String[] { "members={count}" });
+		properties.put("partitionProperty", "group");
+		this.createAutoConfig(properties);
+
+		Configuration[] producerConfigs = new Configuration[] {
+				this.createProducerConfig(this.producerProperties("group", "a")),
+				this.createProducerConfig(this.producerProperties("group", "a")),
+				this.createProducerConfig(this.producerProperties("group", "b")),
+				this.createProducerConfig() };
+
+		try {
+			// a configuration for each group, aggregating its members, the
+			// service without a group is partitioned by hash
+			this.assertConsumerCount(3);
+			Thread.sleep(200);
+
+			Map<Object, Object> members = new HashMap<>();
+			for (Configuration consumerConfig : this.getConsumerConfigs(3)) {
+				Dictionary<?, ?> props = consumerConfig.getProperties();
+				members.put(props.get(AutoConfigurator.PARTITION_PROPERTY), props.get("members"));
+			}
+			assertEquals(2, members.get("a"));
+			assertEquals(1, members.get("b"));
+			assertFalse(members.containsKey("null"));
+
+			// the configuration of a group is deleted with its last member
+			producerConfigs[2].delete();
+			producerConfigs[2] = null;
+			this.assertConsumerCount(2);
+			producerConfigs[3].delete();
+			producerConfigs[3] = null;
+			this.assertConsumerCount(1);
+			assertEquals("a",
+					this.getConsumerConfig().getProperties().get(AutoConfigurator.PARTITION_PROPERTY));
+		} finally {
+			this.deleteAll(producerConfigs);
+		}
+	}
+
+	public void testBulkDeleteFailures() throws Exception {
+		Properties properties = this.autoConfigProperties(Multiplicity.ONE_FOR_EACH,
+				new String[] { "matched={service.pid}" });
+		// the deletion below is to go unnoticed
+		properties.put("driftPolicy", "IGNORE");
+		this.createAutoConfig(properties);
+
+		Configuration[] producerConfigs = new Configuration[0];
+
+		try {
+			producerConfigs = this.createProducerConfigs(3);
+			this.assertConsumerCount(3);
+			RuleMetrics metrics = this.getMetrics();
+
+			// a configuration deleted by someone else fails to be deleted
+			// along with the rule, the others are deleted nonetheless
+			this.getConsumerConfigs(3)[0].delete();
+			this.autoconfig.delete();
+			this.autoconfig = null;
+
+			this.assertConsumerCount(0);
+			assertEquals(1, metrics.getFailures());
+			assertEquals(2, metrics.getDeletedConfigurations());
+		} finally {
+			this.deleteAll(producerConfigs);
+		}
+	}
+
+	public void testBulkDeleteDeadline() throws Exception {
+		Properties properties = this.autoConfigProperties(Multiplicity.ONE_FOR_EACH,
+				new String[] { "matched={service.pid}" });
+		properties.put("bulkParallelism", Integer.valueOf(1));
+		properties.put("bulkTimeout", Long.valueOf(0));
+		this.createAutoConfig(properties);
+
+		Configuration[] producerConfigs = new Configuration[0];
+
+		try {
+			producerConfigs = this.createProducerConfigs(20);
+			this.assertConsumerCount(20);
+
+			// the configurations not deleted by the deadline are left behind
+			this.autoconfig.delete();
+			this.autoconfig = null;
+
+			Thread.sleep(200);
+			Configuration[] consumerConfigs = this.configAdmin.listConfigurations("(service.factoryPid=nl.frensjan.osgi.autoconf.test.ConsumerImpl)");
+			assertNotNull(consumerConfigs);
+			assertTrue(consumerConfigs.length > 0);
+
+			this.deleteAll(consumerConfigs);
+			this.assertConsumerCount(0);
+		} finally {
+			this.deleteAll(producerConfigs);
+		}
+	}
+
+	public void testTypedProperties() throws Exception {
+		this.createAutoConfig(Multiplicity.ONE_FOR_EACH, new String[] { "port:Integer=8080",
+				"secure:Boolean=true", "ids:Long[]={service.id}", "source:String={service.id}" });
+
+		Configuration producerConfig = this.createProducerConfig();
+
+		try {
+			this.assertConsumerCount(1);
+
+			Dictionary<?, ?> props = this.getConsumerConfig().getProperties();
+			assertEquals(Integer.valueOf(8080), props.get("port"));
+			assertEquals(Boolean.TRUE, props.get("secure"));
+			assertTrue(props.get("ids") instanceof Long[]);
+			assertEquals(1, ((Long[]) props.get("ids")).length);
+			assertTrue(props.get("source") instanceof String);
+		} finally {
+			this.deleteAll(new Configuration[] { producerConfig });
+		}
+	}
+
+	public void testColonInKey() throws Exception {
+		// a suffix which isn't a type is part of the key
+		this.createAutoConfig(Multiplicity.ONE_FOR_EACH, new String[] { "a:b={service.pid}",
+				"c:d:Integer=1" });
+
+		Configuration producerConfig = this.createProducerConfig();
+
+		try {
+			this.assertConsumerCount(1);
+
+			Dictionary<?, ?> props = this.getConsumerConfig().getProperties();
+			assertEquals(producerConfig.getPid(), props.get("a:b"));
+			assertEquals(Integer.valueOf(1), props.get("c:d"));
+		} finally {
+			this.deleteAll(new Configuration[] { producerConfig });
+		}
+	}
+
+	public void testJournaledReactivationWritesNothing() throws Exception {
+		Properties properties = this.autoConfigProperties(Multiplicity.ONE_FOR_EACH,
+				new String[] { "matched={service.pid}" });
+		this.createAutoConfig(properties);
+
+		Configuration[] producerConfigs = new Configuration[0];
+		UpdateCounter updates = new UpdateCounter();
+		ServiceRegistration listener = null;
+
+		try {
+			producerConfigs = this.createProducerConfigs(3);
+			this.assertConsumerCount(3);
+			Thread.sleep(200);
+			listener = this.countUpdates(updates);
+
+			// the configurations journaled on deactivation are unchanged when
+			// the rule is activated again
+			properties.put("comment", "modified");
+			this.autoconfig.update(properties);
+
+			Thread.sleep(500);
+			this.assertConsumerCount(3);
+			assertEquals(0, updates.get());
+		} finally {
+			if (listener != null) {
+				listener.unregister();
+			}
+			this.deleteAll(producerConfigs);
+		}
+	}
+
+	public void testMetrics() throws Exception {
+		this.createAutoConfig(Multiplicity.ONE_FOR_EACH, new String[] { "matched={service.pid}" });
+
+		Configuration[] producerConfigs = new Configuration[0];
+
+		try {
+			producerConfigs = this.createProducerConfigs(3);
+			this.assertConsumerCount(3);
+
+			ServiceReference[] refs = this.context.getServiceReferences(RuleMetrics.class.getName(),
+					String.format("(%s=%s)", AutoConfigurator.RULE_PROPERTY, this.autoconfig.getPid()));
+			assertNotNull(refs);
+			assertEquals(1, refs.length);
+
+			RuleMetrics metrics = (RuleMetrics) this.context.getService(refs[0]);
+			try {
+				assertEquals(this.autoconfig.getPid(), metrics.getRuleId());
+				assertEquals(3, metrics.getCreatedConfigurations());
+				assertEquals(3, metrics.getManagedConfigurations());
+				assertEquals(3, metrics.getConfigAdminLatency().getCount());
+				assertEquals(0, metrics.getFailures());
+			} finally {
+				this.context.ungetService(refs[0]);
+			}
+		} finally {
+			this.deleteAll(producerConfigs);
+		}
+	}
+
+	public void testDriftRepair() throws Exception {
+		Properties properties = this.autoConfigProperties(Multiplicity.ONE_FOR_EACH,
+				new String[] { "matched={service.pid}" });
+		properties.put("driftPolicy", "REPAIR");
+		this.createAutoConfig(properties);
+
+		Configuration producerConfig = this.createProducerConfig();
+
+		try {
+			this.assertConsumerCount(1);
+
+			// a change made by someone else is reverted
+			Configuration consumerConfig = this.getConsumerConfig();
+			Dictionary<?, ?> props = consumerConfig.getProperties();
+			Properties tampered = new Properties();
+			for (Enumeration<?> keys = props.keys(); keys.hasMoreElements();) {
+				Object key = keys.nextElement();
+				tampered.put(key, props.get(key));
+			}
+			tampered.put("matched", "tampered");
+			consumerConfig.update(tampered);
+
+			Thread.sleep(200);
+			assertEquals(producerConfig.getPid(),
+					this.getConsumerConfig().getProperties().get("matched"));
+
+			// a deletion by someone else is undone
+			consumerConfig.delete();
+
+			Thread.sleep(200);
+			this.assertConsumerCount(1);
+			assertEquals(producerConfig.getPid(),
+					this.getConsumerConfig().getProperties().get("matched"));
+		} finally {
+			this.deleteAll(new Configuration[] { producerConfig });
+		}
+	}
+
+	public void testEndMatchDeletes() throws Exception {
+		Properties properties = this.autoConfigProperties(Multiplicity.ONE_FOR_EACH,
+				new String[] { "matched={service.id}" });
+		properties.put("filter", "(&(autoconf.test=producer)(enabled=true))");
+		this.createAutoConfig(properties);
+
+		Properties producerProperties = this.producerProperties("enabled", "true");
+		ServiceRegistration producer = this.registerProducer(producerProperties);
+
+		try {
+			this.assertConsumerCount(1);
+
+			// a service which no longer matches loses its configuration
+			producerProperties.put("enabled", "false");
+			producer.setProperties(producerProperties);
+			this.assertConsumerCount(0);
+		} finally {
+			producer.unregister();
+		}
+	}
+
+	public void testLingeringReclaimed() throws Exception {
+		Properties properties = this.autoConfigProperties(Multiplicity.ONE_FOR_EACH,
+				new String[] { "matched={service.pid}" });
+		properties.put("filter",
+				String.format("(&(service.factoryPid=%s)(enabled=true))", ProducerImpl.class.getName()));
+		properties.put("lingerTime", Long.valueOf(60000));
+		this.createAutoConfig(properties);
+
+		Configuration producerConfig = this.createProducerConfig(this.producerProperties(
+				"enabled", "true"));
+
+		try {
+			this.assertConsumerCount(1);
+			String consumerPid = this.getConsumerConfig().getPid();
+
+			// the configuration lingers while the producer doesn't match
+			producerConfig.update(this.producerProperties("enabled", "false"));
+			Thread.sleep(200);
+			this.assertConsumerCount(1);
+			assertEquals(consumerPid, this.getConsumerConfig().getPid());
+
+			// and is taken over when it matches again
+			producerConfig.update(this.producerProperties("enabled", "true"));
+			Thread.sleep(200);
+			this.assertConsumerCount(1);
+			assertEquals(consumerPid, this.getConsumerConfig().getPid());
+			assertEquals(producerConfig.getPid(),
+					this.getConsumerConfig().getProperties().get("matched"));
+		} finally {
+			this.deleteAll(new Configuration[] { producerConfig });
+		}
+	}
+
+	public void testLazyMaterialization() throws Exception {
+		Properties properties = this.autoConfigProperties(Multiplicity.ONE_FOR_EACH,
+				new String[] { "matched={service.pid}" });
+		properties.put("lazy", Boolean.TRUE);
+		properties.put("consumerFilter", "(autoconf.test=consumer)");
+		this.createAutoConfig(properties);
+
+		Configuration producerConfig = this.createProducerConfig();
+		ServiceRegistration consumer = null;
+
+		try {
+			// no configuration is created while there is no consumer
+			Thread.sleep(200);
+			this.assertConsumerCount(0);
+
+			// and it is created once a consumer appears
+			Properties consumerProperties = new Properties();
+			consumerProperties.put("autoconf.test", "consumer");
+			consumer = this.context.registerService(Object.class.getName(), new Object(),
+					consumerProperties);
+			this.assertConsumerCount(1);
+		} finally {
+			if (consumer != null) {
+				consumer.unregister();
+			}
+			this.deleteAll(new Configuration[] { producerConfig });
+		}
+	}
+
+	public void testLazyDeletesDepartedConfigurations() throws Exception {
+		Properties properties = this.autoConfigProperties(Multiplicity.ONE_FOR_EACH,
+				new String[] { "matched={service.pid}" });
+		this.createAutoConfig(properties);
+
+		Configuration producerConfig = this.createProducerConfig();
+		ServiceRegistration consumer = null;
+
+		try {
+			this.assertConsumerCount(1);
+
+			// the rule is activated again, the configuration is adopted while
+			// there is no consumer
+			properties.put("lazy", Boolean.TRUE);
+			properties.put("consumerFilter", "(autoconf.test=consumer)");
+			properties.put("lazyGracePeriod", Long.valueOf(60000));
+			this.autoconfig.update(properties);
+			Thread.sleep(200);
+			this.assertConsumerCount(1);
+
+			// the producer leaves before a consumer appears
+			producerConfig.delete();
+			producerConfig = null;
+			Thread.sleep(200);
+
+			Properties consumerProperties = new Properties();
+			consumerProperties.put("autoconf.test", "consumer");
+			consumer = this.context.registerService(Object.class.getName(), new Object(),
+					consumerProperties);
+			this.assertConsumerCount(0);
+		} finally {
+			if (consumer != null) {
+				consumer.unregister();
+			}
+			this.deleteAll(new Configuration[] { producerConfig });
+		}
+	}
+
 	private interface MatchedValidator {
 		public void validate(int producers, Object matched);
 	}
 
+	// counts the updates of the consumer configurations
+	private static final class UpdateCounter implements ConfigurationListener {
+		private final AtomicInteger updates = new AtomicInteger();
+
+		@Override
+		public void configurationEvent(ConfigurationEvent event) {
+			if (event.getType() == ConfigurationEvent.CM_UPDATED
+					&& CONSUMER_CLASS.getName().equals(event.getFactoryPid())) {
+				this.updates.incrementAndGet();
+			}
+		}
+
+		int get() {
+			return this.updates.get();
+		}
+	}
+
 	private void assertCorrectMatchedUpdates(MatchedValidator matchedValidator) throws IOException,
 			InvalidSyntaxException, InterruptedException {
 
@@ -184,6 +761,34 @@ public class AutoConfiguratorTest extends TestCase {
 		assertEquals(count, refs.length);
 	}
 
+	private Configuration getConsumerConfig() throws IOException, InvalidSyntaxException {
+		return this.getConsumerConfigs(1)[0];
+	}
+
+	private Configuration[] getConsumerConfigs(int count) throws IOException,
+			InvalidSyntaxException {
+		Configuration[] consumerConfigs = this.configAdmin.listConfigurations("(service.factoryPid=nl.frensjan.osgi.autoconf.test.ConsumerImpl)");
+		assertNotNull(consumerConfigs);
+		assertEquals(count, consumerConfigs.length);
+		return consumerConfigs;
+	}
+
+	private Set<String> consumerPids(int count) throws IOException, InvalidSyntaxException {
+		Set<String> pids = new HashSet<>();
+		for (Configuration consumerConfig : this.getConsumerConfigs(count)) {
+			pids.add(consumerConfig.getPid());
+		}
+		return pids;
+	}
+
+	private RuleMetrics getMetrics() throws InvalidSyntaxException {
+		ServiceReference[] refs = this.context.getServiceReferences(RuleMetrics.class.getName(),
+				String.format("(%s=%s)", AutoConfigurator.RULE_PROPERTY, this.autoconfig.getPid()));
+		assertNotNull(refs);
+		assertEquals(1, refs.length);
+		return (RuleMetrics) this.context.getService(refs[0]);
+	}
+
 	private void deleteAll(Configuration[] configs) throws IOException {
 		for (Configuration config : configs) {
 			if (config != null) {
@@ -202,15 +807,44 @@ public class AutoConfiguratorTest extends TestCase {
 	}
 
 	private Configuration createProducerConfig() throws IOException {
+		return this.createProducerConfig(new Properties());
+	}
+
+	private Configuration createProducerConfig(Properties properties) throws IOException {
 		Configuration producerConfig = this.configAdmin.createFactoryConfiguration(PRODUCER_CLASS.getName(),
 				null);
-		producerConfig.update(new Properties());
+		producerConfig.update(properties);
 		return producerConfig;
 	}
 
+	private Properties producerProperties(String key, Object value) {
+		Properties properties = new Properties();
+		properties.put(key, value);
+		return properties;
+	}
+
+	// register a producer directly, so that its properties can be modified
+	// without it being registered again
+	private ServiceRegistration registerProducer(Properties properties) {
+		properties.put("autoconf.test", "producer");
+		return this.context.registerService(Object.class.getName(), new Object(), properties);
+	}
+
+	private ServiceRegistration countUpdates(UpdateCounter counter) {
+		return this.context.registerService(ConfigurationListener.class.getName(), counter, null);
+	}
+
 	private void createAutoConfig(Multiplicity multiplicity, String... configuration)
 			throws IOException {
+		this.createAutoConfig(this.autoConfigProperties(multiplicity, configuration));
+	}
+
+	private void createAutoConfig(Properties properties) throws IOException {
 		this.autoconfig = this.configAdmin.createFactoryConfiguration(AutoConfigurator.class.getName());
+		this.autoconfig.update(properties);
+	}
+
+	private Properties autoConfigProperties(Multiplicity multiplicity, String... configuration) {
 		Properties properties = new Properties();
 		properties.put("filter",
 				String.format("(service.factoryPid=%s)", ProducerImpl.class.getName()));
@@ -219,8 +853,7 @@ public class AutoConfiguratorTest extends TestCase {
 		properties.put("factory", Boolean.TRUE);
 		// properties.put("targetLocation", value);
 		properties.put("configuration", configuration);
-
-		this.autoconfig.update(properties);
+		return properties;
 	}
 
 	private ServiceReference[] getServiceReferences(Class<ConsumerImpl> clazz, int timeout,